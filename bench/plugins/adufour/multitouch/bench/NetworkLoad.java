@@ -0,0 +1,114 @@
+package plugins.adufour.multitouch.bench;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.vecmath.Vector2f;
+
+import plugins.adufour.multitouch.MultiTouchProvider;
+import plugins.adufour.multitouch.PrimitiveTwoFingersListener;
+
+import com.alderstone.multitouch.mac.touchpad.NetworkTouchClient;
+import com.alderstone.multitouch.mac.touchpad.NetworkTouchSource;
+import com.alderstone.multitouch.mac.touchpad.TouchFrame;
+import com.alderstone.multitouch.mac.touchpad.TouchFrameListener;
+
+/**
+ * Streams synthetic two-finger frames to a {@link NetworkTouchSource} over the loopback interface,
+ * and reports the throughput of the whole pipeline (network decoding, frame assembly, gesture
+ * analysis). Usage: <code>NetworkLoad [frames] [frames per second (0 = as fast as possible)]</code>
+ * 
+ * @author adufour
+ */
+public class NetworkLoad
+{
+    /** Native state identifiers (see FingerState.getStateFor()) */
+    private static final int    PRESSED    = 4, RELEASED = 7;
+    
+    /** Touchpad frame rate (in Hz), used for the timestamps whatever the actual rate */
+    private static final double FRAME_RATE = 90;
+    
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        final int nbFrames = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final double rate = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        
+        NetworkTouchSource source = new NetworkTouchSource(0);
+        source.setRecycling(true);
+        
+        final AtomicLong frames = new AtomicLong();
+        final AtomicLong gestures = new AtomicLong();
+        
+        source.addFrameListener(new TouchFrameListener()
+        {
+            @Override
+            public void frameReceived(TouchFrame frame)
+            {
+                frames.incrementAndGet();
+            }
+        });
+        
+        MultiTouchProvider provider = new MultiTouchProvider(source);
+        provider.addTwoFingersListener(new PrimitiveTwoFingersListener()
+        {
+            @Override
+            public void rotate(MultiTouchProvider source, float rotation)
+            {
+                gestures.incrementAndGet();
+            }
+            
+            @Override
+            public void pinch(MultiTouchProvider source, float delta)
+            {
+                gestures.incrementAndGet();
+            }
+            
+            @Override
+            public void drag(MultiTouchProvider source, Vector2f vector, float distance)
+            {
+            }
+            
+            @Override
+            public void drag(MultiTouchProvider source, float dx, float dy, float distance)
+            {
+                gestures.incrementAndGet();
+            }
+        });
+        
+        NetworkTouchClient client = new NetworkTouchClient(source.getPort());
+        
+        final long period = rate > 0 ? (long) (1e9 / rate) : 0;
+        final long start = System.nanoTime();
+        
+        for (int frame = 1; frame <= nbFrames; frame++)
+        {
+            if (period > 0)
+            {
+                long wait = start + frame * period - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+            }
+            
+            int state = frame == nbFrames ? RELEASED : PRESSED;
+            double timestamp = frame / FRAME_RATE;
+            float spread = 0.1f + 0.05f * (float) Math.sin(frame * 0.05);
+            
+            client.send(frame, timestamp, 1, state, 1f, 0.5f - spread, 0.5f, 0f, 0f, 0f, 10f, 8f);
+            client.send(frame, timestamp, 2, state, 1f, 0.5f + spread, 0.5f, 0f, 0f, 0f, 10f, 8f);
+            client.flush();
+        }
+        
+        client.close();
+        
+        // wait for the source to process everything
+        while (source.getEventCount() < 2L * nbFrames)
+            Thread.sleep(1);
+        
+        double seconds = (System.nanoTime() - start) / 1e9;
+        
+        System.out.printf("%d frames received in %.2f s (%.0f frames/s, %.0f events/s), %d gestures%n", frames.get(), seconds, frames.get() / seconds, source.getEventCount() / seconds, gestures.get());
+        
+        provider.shutDown();
+        source.close();
+    }
+}
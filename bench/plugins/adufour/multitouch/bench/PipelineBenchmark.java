@@ -0,0 +1,166 @@
+package plugins.adufour.multitouch.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Vector2f;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import plugins.adufour.multitouch.FingerMotionListener;
+import plugins.adufour.multitouch.FingerStateListener;
+import plugins.adufour.multitouch.MultiTouchProvider;
+import plugins.adufour.multitouch.PrimitiveTwoFingersListener;
+
+import com.alderstone.multitouch.mac.touchpad.Finger;
+import com.alderstone.multitouch.mac.touchpad.TraceReplaySource;
+
+/**
+ * Measures the cost per native event of the gesture pipeline (frame assembly, finger state
+ * tracking, gesture analysis and listener notification), for synthetic one-, two- and N-finger
+ * traces and an increasing number of registered listeners.<br/>
+ * The events go through the same frame assembly as the touchpad events, but are read from a
+ * recorded trace, since the touchpad itself requires the Mac native library.<br/>
+ * Run {@link #main(String[])} to include the allocation rate (GC profiler).
+ * 
+ * @author adufour
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PipelineBenchmark
+{
+    /** Number of events per trace (divisible by all finger counts) */
+    private static final int   EVENTS = 12000;
+    
+    @Param({ "1", "2", "5" })
+    private int                fingers;
+    
+    /**
+     * Number of listeners of each type (state, motion, two-fingers). Without listener, the
+     * provider does not subscribe to the source, hence only the frame assembly is measured
+     */
+    @Param({ "0", "1", "10", "100" })
+    private int                listeners;
+    
+    @Param({ "false", "true" })
+    private boolean            recycling;
+    
+    private File               trace;
+    
+    private TraceReplaySource  source;
+    
+    private MultiTouchProvider provider;
+    
+    @Setup(Level.Trial)
+    public void setUp(final Blackhole blackhole) throws IOException
+    {
+        trace = SyntheticTraces.create(fingers, EVENTS);
+        
+        source = new TraceReplaySource(trace);
+        source.setRecycling(recycling);
+        
+        provider = new MultiTouchProvider(source);
+        
+        for (int i = 0; i < listeners; i++)
+        {
+            provider.addFingerListener(new FingerStateListener()
+            {
+                @Override
+                public void fingerReleased(MultiTouchProvider multiTouchProvider, Finger f)
+                {
+                    blackhole.consume(f);
+                }
+                
+                @Override
+                public void fingerPressed(MultiTouchProvider multiTouchProvider, Finger f)
+                {
+                    blackhole.consume(f);
+                }
+                
+                @Override
+                public void fingerHover(MultiTouchProvider multiTouchProvider, Finger f)
+                {
+                    blackhole.consume(f);
+                }
+            });
+            
+            provider.addFingerMotionListener(new FingerMotionListener()
+            {
+                @Override
+                public void fingerMoved(MultiTouchProvider multiTouchProvider, Finger f, float dX, float dY)
+                {
+                    blackhole.consume(dX + dY);
+                }
+            });
+            
+            provider.addTwoFingersListener(new PrimitiveTwoFingersListener()
+            {
+                @Override
+                public void rotate(MultiTouchProvider source, float angle)
+                {
+                    blackhole.consume(angle);
+                }
+                
+                @Override
+                public void pinch(MultiTouchProvider source, float delta)
+                {
+                    blackhole.consume(delta);
+                }
+                
+                @Override
+                public void drag(MultiTouchProvider source, Vector2f direction, float delta)
+                {
+                    blackhole.consume(direction);
+                }
+                
+                @Override
+                public void drag(MultiTouchProvider source, float directionX, float directionY, float delta)
+                {
+                    blackhole.consume(directionX + directionY + delta);
+                }
+            });
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        provider.shutDown();
+        trace.delete();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public long replay()
+    {
+        return source.replay(false);
+    }
+    
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(PipelineBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,82 @@
+package plugins.adufour.multitouch.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.alderstone.multitouch.mac.touchpad.TouchTraceWriter;
+
+/**
+ * Generates synthetic touch traces, where a number of fingers placed on a circle successively
+ * translate, spread apart and rotate around their centroid
+ * 
+ * @author adufour
+ */
+public class SyntheticTraces
+{
+    /** Native state identifiers (see FingerState.getStateFor()) */
+    private static final int    PRESSED        = 4, RELEASED = 7;
+    
+    /** Touchpad frame rate (in Hz) */
+    private static final double FRAME_RATE     = 90;
+    
+    /** Number of frames of each gesture phase (translation, pinch, rotation) */
+    private static final int    PHASE_DURATION = 60;
+    
+    /**
+     * Writes a synthetic trace into a temporary file
+     * 
+     * @param nbFingers
+     *            the number of fingers touching the pad
+     * @param nbEvents
+     *            the total number of events (rounded down to a multiple of the number of fingers)
+     * @return the trace file (deleted when the JVM exits)
+     * @throws IOException
+     */
+    public static File create(int nbFingers, int nbEvents) throws IOException
+    {
+        File file = File.createTempFile("synthetic-" + nbFingers + "-fingers", ".mtt");
+        file.deleteOnExit();
+        
+        TouchTraceWriter writer = new TouchTraceWriter(file);
+        
+        try
+        {
+            int nbFrames = nbEvents / nbFingers;
+            
+            float cx = 0.5f, cy = 0.5f, radius = 0.1f, rotation = 0f;
+            
+            for (int frame = 1; frame <= nbFrames; frame++)
+            {
+                switch ((frame / PHASE_DURATION) % 3)
+                {
+                    case 0: // translation, back and forth
+                        cx += ((frame / (3 * PHASE_DURATION)) % 2 == 0 ? 0.004f : -0.004f);
+                        break;
+                    case 1: // pinch
+                        radius = 0.1f + 0.05f * (float) Math.sin(frame * 0.1);
+                        break;
+                    default: // rotation
+                        rotation += 0.02f;
+                }
+                
+                int state = frame == nbFrames ? RELEASED : PRESSED;
+                double timestamp = frame / FRAME_RATE;
+                
+                for (int i = 0; i < nbFingers; i++)
+                {
+                    double a = rotation + 2 * Math.PI * i / nbFingers;
+                    float x = cx + radius * (float) Math.cos(a);
+                    float y = cy + radius * (float) Math.sin(a);
+                    
+                    writer.write(frame, timestamp, i + 1, state, 1f, x, y, 0f, 0f, (float) a, 10f, 8f);
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+        
+        return file;
+    }
+}
@@ -30,6 +30,24 @@ public class Finger {
 	float x,y,dx,dy;
 	
 	public Finger(int frame, double timestamp, int id, int state, float size,   float x, float y, float dx, float dy, float angle, float majorAxis, float minorAxis) {
+		set(frame, timestamp, id, state, size, x, y, dx, dy, angle, majorAxis, minorAxis);
+	}
+	
+	/**
+	 * Creates a detached copy of the specified finger
+	 */
+	public Finger(Finger other) {
+		copyFrom(other);
+	}
+	
+	/**
+	 * Creates an empty record, to be filled later on (used by the recycling pipeline)
+	 */
+	Finger() {
+		this.state = FingerState.UNKNOWN;
+	}
+	
+	void set(int frame, double timestamp, int id, int state, float size,   float x, float y, float dx, float dy, float angle, float majorAxis, float minorAxis) {
 		this.timestamp=timestamp;
 		this.frame=frame;
 		this.id=id;
@@ -46,6 +64,31 @@ public class Finger {
 		this.state = FingerState.getStateFor(state);
 		
 	}
+	
+	/**
+	 * Overwrites this record with the contents of another finger. This allows consumers to keep
+	 * finger states in their own preallocated records without allocating on every event
+	 */
+	public void copyFrom(Finger other) {
+		this.timestamp=other.timestamp;
+		this.frame=other.frame;
+		this.id=other.id;
+		this.state=other.state;
+		this.size=other.size;
+		this.angle=other.angle;
+		this.majorAxis=other.majorAxis;
+		this.minorAxis=other.minorAxis;
+		this.x=other.x;
+		this.y=other.y;
+		this.dx=other.dx;
+		this.dy=other.dy;
+	}
+	
+	/**
+	 * @return a detached copy of this finger, safe to keep after the notification when the
+	 *         touchpad runs in recycling mode (see {@link TouchpadObservable#setRecycling(boolean)})
+	 */
+	public Finger copy() { return new Finger(this); }
 
 	public int getID() { return id; }
 	public FingerState getState() { return state; }
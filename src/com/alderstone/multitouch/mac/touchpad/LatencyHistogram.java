@@ -0,0 +1,145 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of durations (in nanoseconds), in the spirit of HdrHistogram: each power of
+ * two is split into {@value #SUB_BUCKETS} linear buckets, which bounds the relative error of the
+ * reported values to about 3% over the whole range (1 ns to several minutes). Recording a value
+ * takes no lock and no allocation, and can be done from any thread.
+ * 
+ * @author adufour
+ */
+public final class LatencyHistogram
+{
+	/** Number of linear buckets per power of two */
+	public static final int			SUB_BUCKETS		= 16;
+	
+	private static final int		SUB_BUCKET_BITS	= 4;
+	
+	/** Highest power of two with its own buckets (larger values go in the last bucket) */
+	private static final int		MAX_EXPONENT	= 40;
+	
+	private static final int		BUCKETS			= (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+	
+	private final AtomicLongArray	counts			= new AtomicLongArray(BUCKETS);
+	
+	private final AtomicLong		count			= new AtomicLong();
+	
+	private final AtomicLong		sum				= new AtomicLong();
+	
+	private final AtomicLong		max				= new AtomicLong();
+	
+	/**
+	 * Records the specified duration
+	 * 
+	 * @param nanos
+	 *            a duration in nanoseconds (negative values are recorded as 0)
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0) nanos = 0;
+		
+		counts.incrementAndGet(indexOf(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos))
+			m = max.get();
+	}
+	
+	private static int indexOf(long value)
+	{
+		if (value < SUB_BUCKETS) return (int) value;
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+		
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	/**
+	 * @return the smallest value falling into the specified bucket
+	 */
+	private static long lowerBoundOf(int index)
+	{
+		if (index < SUB_BUCKETS) return index;
+		
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+	
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+	
+	/**
+	 * @return the average of the recorded values (in nanoseconds), or 0 if nothing was recorded
+	 */
+	public double getMean()
+	{
+		long n = count.get();
+		return n == 0 ? 0.0 : (double) sum.get() / n;
+	}
+	
+	/**
+	 * @return the largest recorded value (in nanoseconds)
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+	
+	/**
+	 * @param percentile
+	 *            a percentile between 0 and 100
+	 * @return the value (in nanoseconds) under which the specified percentage of the recorded
+	 *         values fall, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("A percentile should be between 0 and 100");
+		
+		long n = count.get();
+		if (n == 0) return 0;
+		
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+			{
+				// middle of the bucket, but never beyond the actual maximum
+				long low = lowerBoundOf(i);
+				long high = i == BUCKETS - 1 ? max.get() : lowerBoundOf(i + 1) - 1;
+				return Math.min((low + high) / 2, max.get());
+			}
+		}
+		
+		// values recorded concurrently with this call
+		return max.get();
+	}
+	
+	/**
+	 * Forgets all recorded values. Values recorded concurrently with this call may be partially
+	 * accounted for
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+}
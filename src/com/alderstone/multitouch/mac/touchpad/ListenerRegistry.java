@@ -0,0 +1,122 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Thread-safe, copy-on-write list of listeners. Listeners can be added or removed from any thread
+ * without locking, while event dispatchers iterate over an immutable snapshot array (see
+ * {@link #getListeners()}), which takes neither a lock nor an allocation.
+ * 
+ * @param <T>
+ *            the listener type
+ * @author adufour
+ */
+public class ListenerRegistry<T>
+{
+	private final AtomicReference<T[]>	listeners;
+	
+	/**
+	 * @param type
+	 *            the listener type (used to create the snapshot arrays)
+	 */
+	@SuppressWarnings("unchecked")
+	public ListenerRegistry(Class<T> type)
+	{
+		listeners = new AtomicReference<T[]>((T[]) Array.newInstance(type, 0));
+	}
+	
+	/**
+	 * Adds the specified listener (if it is not already registered)
+	 * 
+	 * @param listener
+	 * @return <code>true</code> if the listener was added
+	 */
+	public boolean add(T listener)
+	{
+		if (listener == null) throw new NullPointerException("Cannot register a null listener");
+		
+		while (true)
+		{
+			T[] current = listeners.get();
+			
+			for (T l : current)
+				if (l == listener) return false;
+			
+			T[] updated = copyOf(current, current.length + 1);
+			updated[current.length] = listener;
+			
+			if (listeners.compareAndSet(current, updated)) return true;
+		}
+	}
+	
+	/**
+	 * Removes the specified listener
+	 * 
+	 * @param listener
+	 * @return <code>true</code> if the listener was registered
+	 */
+	public boolean remove(T listener)
+	{
+		while (true)
+		{
+			T[] current = listeners.get();
+			
+			int index = -1;
+			for (int i = 0; i < current.length; i++)
+				if (current[i] == listener)
+				{
+					index = i;
+					break;
+				}
+			
+			if (index == -1) return false;
+			
+			T[] updated = copyOf(current, current.length - 1);
+			System.arraycopy(current, index + 1, updated, index, updated.length - index);
+			
+			if (listeners.compareAndSet(current, updated)) return true;
+		}
+	}
+	
+	/**
+	 * Removes all listeners
+	 */
+	public void clear()
+	{
+		listeners.set(copyOf(listeners.get(), 0));
+	}
+	
+	/**
+	 * @return a snapshot of the registered listeners. This array is shared and must not be
+	 *         modified
+	 */
+	public T[] getListeners()
+	{
+		return listeners.get();
+	}
+	
+	/**
+	 * @return the number of registered listeners
+	 */
+	public int size()
+	{
+		return listeners.get().length;
+	}
+	
+	/**
+	 * @return <code>true</code> if no listener is registered
+	 */
+	public boolean isEmpty()
+	{
+		return listeners.get().length == 0;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T[] copyOf(T[] array, int length)
+	{
+		T[] copy = (T[]) Array.newInstance(array.getClass().getComponentType(), length);
+		System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+		return copy;
+	}
+}
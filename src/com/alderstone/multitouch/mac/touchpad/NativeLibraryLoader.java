@@ -0,0 +1,232 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Loads a native library packaged as a resource next to a given class.<br/>
+ * A resource cannot be loaded directly from within a .jar file, hence it is first extracted into
+ * a cache folder of the current user, which only the user can access (so that nobody else can
+ * replace the library between its extraction and its loading). Extracted files are named after
+ * the hash of their content, read from a resource packaged next to the library (e.g.
+ * <code>libFoo.jnilib.sha256</code>, to be updated along with the library), so that a copy left
+ * by a previous launch is reused, once checked against that hash (a copy that does not match is
+ * extracted again).
+ * 
+ * @author adufour
+ */
+class NativeLibraryLoader
+{
+	private static final int	BUFFER_SIZE		= 8192;
+	
+	/** Extension of the resource holding the (hexadecimal) SHA-256 hash of a library */
+	private static final String	HASH_SUFFIX		= ".sha256";
+	
+	/** Cache folder of the extracted libraries, relative to the home folder of the user */
+	private static final String	CACHE_FOLDER	= "Library/Caches/IcyTouch";
+	
+	/** Number of attempts to move an extracted library in place */
+	private static final int	RENAME_ATTEMPTS	= 3;
+	
+	private NativeLibraryLoader()
+	{
+	}
+	
+	/**
+	 * Extracts (if necessary) and loads the specified library
+	 * 
+	 * @param anchor
+	 *            the class next to which the library is packaged
+	 * @param prefix
+	 *            the library file name (without extension)
+	 * @param suffix
+	 *            the library file extension
+	 * @throws IOException
+	 *             if the library cannot be extracted
+	 */
+	static void load(Class<?> anchor, String prefix, String suffix) throws IOException
+	{
+		String resource = prefix + suffix;
+		
+		if (anchor.getResource(resource) == null) throw new FileNotFoundException("Missing native library: " + resource);
+		
+		InputStream hashStream = anchor.getResourceAsStream(resource + HASH_SUFFIX);
+		
+		// without a packaged hash (e.g. in a development build), hash the library itself
+		String hash = hashStream != null ? readHash(hashStream) : hash(anchor.getResourceAsStream(resource));
+		
+		File libFile = new File(getCacheFolder(), prefix + "-" + hash + suffix);
+		
+		// a copy left by a previous launch may have been truncated or altered since
+		if (!matches(libFile, hash)) libFile = extract(anchor.getResourceAsStream(resource), libFile, hash);
+		
+		System.load(libFile.getAbsolutePath());
+	}
+	
+	/**
+	 * Extracts a library into the specified file. The library is written into a private file
+	 * first, then moved in place, so that the file is either complete or absent
+	 * 
+	 * @param is
+	 *            the content of the library (closed afterwards)
+	 * @param libFile
+	 *            the file to extract the library into
+	 * @param hash
+	 *            the hash of the library
+	 * @return the file to load: the specified file, or the private file if it could not be moved
+	 *         in place (deleted when the virtual machine exits)
+	 * @throws IOException
+	 *             if the library cannot be extracted
+	 */
+	private static File extract(InputStream is, File libFile, String hash) throws IOException
+	{
+		File tmpFile = File.createTempFile(libFile.getName(), ".tmp", libFile.getParentFile());
+		restrictToOwner(tmpFile);
+		
+		copy(is, tmpFile);
+		
+		for (int attempt = 0; attempt < RENAME_ATTEMPTS; attempt++)
+		{
+			if (tmpFile.renameTo(libFile)) return libFile;
+			
+			// another instance may have extracted it concurrently
+			if (matches(libFile, hash))
+			{
+				tmpFile.delete();
+				return libFile;
+			}
+			
+			// otherwise, a copy that does not match may be in the way
+			libFile.delete();
+		}
+		
+		tmpFile.deleteOnExit();
+		return tmpFile;
+	}
+	
+	/**
+	 * @return <code>true</code> if the specified file exists and its content has the specified
+	 *         hash
+	 */
+	private static boolean matches(File file, String hash) throws IOException
+	{
+		return file.isFile() && hash(new FileInputStream(file)).equals(hash);
+	}
+	
+	/**
+	 * @return the cache folder of the extracted libraries (created if necessary), which only the
+	 *         current user can access
+	 * @throws IOException
+	 *             if the folder cannot be created or protected
+	 */
+	private static File getCacheFolder() throws IOException
+	{
+		File cache = new File(System.getProperty("user.home"), CACHE_FOLDER);
+		
+		if (!cache.isDirectory() && !cache.mkdirs()) throw new IOException("Cannot create the native library cache: " + cache);
+		
+		if (!restrictToOwner(cache)) throw new IOException("Cannot protect the native library cache: " + cache);
+		
+		return cache;
+	}
+	
+	/**
+	 * Grants all permissions to the owner of the specified file, and none to the others
+	 * 
+	 * @return <code>true</code> if the permissions were set
+	 */
+	private static boolean restrictToOwner(File file)
+	{
+		boolean ok = file.setReadable(false, false) && file.setReadable(true, true);
+		ok &= file.setWritable(false, false) && file.setWritable(true, true);
+		ok &= file.setExecutable(false, false) && file.setExecutable(true, true);
+		return ok;
+	}
+	
+	/**
+	 * @return the hash read from the specified stream (the stream is closed afterwards)
+	 */
+	private static String readHash(InputStream is) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, "US-ASCII"));
+		
+		try
+		{
+			String hash = reader.readLine();
+			
+			// the hash becomes part of a file name
+			if (hash == null || !hash.trim().matches("[0-9a-f]{64}")) throw new IOException("Invalid native library hash: " + hash);
+			
+			return hash.trim();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Copies a stream into a file using channel transfers (the stream is closed afterwards)
+	 */
+	private static void copy(InputStream is, File file) throws IOException
+	{
+		ReadableByteChannel in = Channels.newChannel(is);
+		FileOutputStream fos = new FileOutputStream(file);
+		
+		try
+		{
+			FileChannel out = fos.getChannel();
+			
+			long position = 0, transferred;
+			while ((transferred = out.transferFrom(in, position, BUFFER_SIZE * 16)) > 0)
+				position += transferred;
+		}
+		finally
+		{
+			fos.close();
+			in.close();
+		}
+	}
+	
+	/**
+	 * @return the SHA-256 hash of the stream content, as a hexadecimal string (the stream is
+	 *         closed afterwards)
+	 */
+	private static String hash(InputStream is) throws IOException
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = is.read(buffer)) != -1)
+				digest.update(buffer, 0, n);
+			
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest())
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// SHA-256 is available on all Java platforms
+			throw new IOException(e.getMessage());
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+}
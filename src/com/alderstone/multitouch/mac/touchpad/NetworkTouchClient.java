@@ -0,0 +1,125 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends touch events to a {@link NetworkTouchSource}. Events are written into a direct buffer,
+ * and sent in a single batch by {@link #flush()}, which should therefore be called once all the
+ * fingers of a frame have been sent. Sending an event does not allocate anything. This class is
+ * not thread-safe.
+ * 
+ * @author adufour
+ */
+public class NetworkTouchClient implements Closeable
+{
+	/**
+	 * Maximum number of events per batch (when exceeded, the batch is sent automatically)
+	 */
+	public static final int		MAX_BATCH_SIZE	= 256;
+	
+	private final SocketChannel	channel;
+	
+	/** Batch being written: record count (int), then the records */
+	private final ByteBuffer	batch			= ByteBuffer.allocateDirect(4 + MAX_BATCH_SIZE * TouchTrace.RECORD_SIZE);
+	
+	private int					count			= 0;
+	
+	/**
+	 * Connects to a source listening on the loopback interface
+	 * 
+	 * @param port
+	 *            the port of the source (see {@link NetworkTouchSource#getPort()})
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	public NetworkTouchClient(int port) throws IOException
+	{
+		this(new InetSocketAddress(InetAddress.getByName(null), port));
+	}
+	
+	/**
+	 * @param address
+	 *            the address of the source
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	public NetworkTouchClient(InetSocketAddress address) throws IOException
+	{
+		channel = SocketChannel.open(address);
+		
+		try
+		{
+			channel.socket().setTcpNoDelay(true);
+			
+			ByteBuffer header = ByteBuffer.allocate(TouchTrace.HEADER_SIZE);
+			TouchTrace.writeHeader(header, 0, 0);
+			write(header);
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Adds an event to the current batch (the arguments are those of the native callback, see
+	 * {@link TouchpadObservable#mtcallback})
+	 * 
+	 * @throws IOException
+	 *             if the batch is full and cannot be sent
+	 */
+	public void send(int frame, double timestamp, int id, int state, float size, float x, float y, float dx, float dy, float angle, float majorAxis, float minorAxis) throws IOException
+	{
+		if (count == MAX_BATCH_SIZE) flush();
+		
+		TouchTrace.writeRecord(batch, 4 + count * TouchTrace.RECORD_SIZE, frame, timestamp, id, state, size, x, y, dx, dy, angle, majorAxis, minorAxis);
+		count++;
+	}
+	
+	/**
+	 * Sends the current batch (if not empty)
+	 * 
+	 * @throws IOException
+	 *             if the connection is lost
+	 */
+	public void flush() throws IOException
+	{
+		if (count == 0) return;
+		
+		batch.putInt(0, count);
+		batch.limit(4 + count * TouchTrace.RECORD_SIZE);
+		batch.position(0);
+		write(batch);
+		
+		batch.clear();
+		count = 0;
+	}
+	
+	private void write(ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+	
+	/**
+	 * Sends the current batch, and closes the connection (the fingers still touching the pad are
+	 * then released by the source)
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,417 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import icy.gui.dialog.MessageDialog;
+import icy.gui.frame.progress.AnnounceFrame;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Touch source receiving native touch events over TCP, e.g. from a tablet driven by another
+ * program, or from a machine without the Mac native library (see {@link NetworkTouchClient}). A
+ * single background thread serves all clients with non-blocking sockets, and dispatches the
+ * frames to the listeners.<br/>
+ * <br/>
+ * A client first sends a {@link TouchTrace} header, followed by any number of batches. A batch
+ * starts with its number of records (int), followed by the records themselves, in the
+ * {@link TouchTrace} format (all values are big-endian). The frame being assembled is considered
+ * complete at the end of each batch, hence a batch should hold whole frames. Records are decoded
+ * straight from a direct buffer per client into the same frame assembly as the native events, so
+ * that receiving an event does not allocate anything (in recycling mode, see
+ * {@link #setRecycling(boolean)}).<br/>
+ * <br/>
+ * Each connection is a separate device (see {@link TouchFrame#getDevice()}), numbered from 1 in
+ * the order of connection. When a client disconnects, its fingers still touching the pad are
+ * released.
+ * 
+ * @author adufour
+ */
+public class NetworkTouchSource implements TouchSource, TouchFrameListener
+{
+	public static final int									DEFAULT_PORT	= 4377;
+	
+	/**
+	 * Largest finger ID accepted from the clients (events with other IDs are ignored)
+	 */
+	public static final int									MAX_FINGER_ID	= 255;
+	
+	/** Size of the receive buffer of each client (about 1200 records) */
+	private static final int								BUFFER_SIZE		= 64 * 1024;
+	
+	/** Display time (in seconds) of the client errors */
+	private static final int								ANNOUNCE_TIME	= 10;
+	
+	private final ListenerRegistry<TouchFrameListener>		listeners		= new ListenerRegistry<TouchFrameListener>(TouchFrameListener.class);
+	
+	/** Interest of each listener (guarded by itself) */
+	private final Map<TouchFrameListener, TouchInterest>	interests		= new IdentityHashMap<TouchFrameListener, TouchInterest>();
+	
+	/** Union of the interests of the listeners, applied to the filter of each client */
+	private volatile TouchInterest							interest		= TouchInterest.ALL;
+	
+	private volatile boolean								recycling		= false;
+	
+	private final Selector									selector;
+	
+	private final ServerSocketChannel						server;
+	
+	private final Thread									receiver;
+	
+	private volatile boolean								closed			= false;
+	
+	/** Device number of the next client (only used by the receiving thread) */
+	private int												nextDevice		= 1;
+	
+	private volatile int									clients			= 0;
+	
+	private volatile long									received		= 0;
+	
+	/**
+	 * Creates a source listening on the loopback interface, on the {@link #DEFAULT_PORT}
+	 * 
+	 * @throws IOException
+	 *             if the port cannot be opened
+	 */
+	public NetworkTouchSource() throws IOException
+	{
+		this(DEFAULT_PORT);
+	}
+	
+	/**
+	 * Creates a source listening on the loopback interface
+	 * 
+	 * @param port
+	 *            the port to listen to (or 0 to use any free port, see {@link #getPort()})
+	 * @throws IOException
+	 *             if the port cannot be opened
+	 */
+	public NetworkTouchSource(int port) throws IOException
+	{
+		this(new InetSocketAddress(InetAddress.getByName(null), port));
+	}
+	
+	/**
+	 * @param address
+	 *            the address to listen to (beware that the events are neither authenticated nor
+	 *            encrypted)
+	 * @throws IOException
+	 *             if the address cannot be bound
+	 */
+	public NetworkTouchSource(InetSocketAddress address) throws IOException
+	{
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		
+		try
+		{
+			server.configureBlocking(false);
+			server.socket().bind(address);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		catch (IOException e)
+		{
+			server.close();
+			selector.close();
+			throw e;
+		}
+		
+		receiver = new Thread("Multi-touch network source")
+		{
+			@Override
+			public void run()
+			{
+				receive();
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+	
+	public void addFrameListener(TouchFrameListener listener)
+	{
+		addFrameListener(listener, TouchInterest.ALL);
+	}
+	
+	public void addFrameListener(TouchFrameListener listener, TouchInterest interest)
+	{
+		synchronized (interests)
+		{
+			interests.put(listener, interest);
+			listeners.add(listener);
+			this.interest = TouchpadObservable.union(interests.values());
+		}
+	}
+	
+	public void removeFrameListener(TouchFrameListener listener)
+	{
+		synchronized (interests)
+		{
+			interests.remove(listener);
+			listeners.remove(listener);
+			this.interest = TouchpadObservable.union(interests.values());
+		}
+	}
+	
+	/**
+	 * Enables or disables the recycling mode (see {@link TouchpadObservable#setRecycling(boolean)})
+	 * 
+	 * @param recycling
+	 */
+	public void setRecycling(boolean recycling)
+	{
+		this.recycling = recycling;
+	}
+	
+	/**
+	 * @return the port this source listens to
+	 */
+	public int getPort()
+	{
+		return server.socket().getLocalPort();
+	}
+	
+	/**
+	 * @return the number of clients currently connected
+	 */
+	public int getClientCount()
+	{
+		return clients;
+	}
+	
+	/**
+	 * @return the number of events received since this source was created
+	 */
+	public long getEventCount()
+	{
+		return received;
+	}
+	
+	/**
+	 * Disconnects all clients (releasing their fingers) and stops listening
+	 */
+	public void close()
+	{
+		closed = true;
+		selector.wakeup();
+		
+		if (Thread.currentThread() == receiver) return;
+		
+		try
+		{
+			receiver.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Serves the clients until this source is closed (on the receiving thread)
+	 */
+	private void receive()
+	{
+		try
+		{
+			while (!closed)
+			{
+				selector.select();
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					
+					if (!key.isValid()) continue;
+					
+					if (key.isAcceptable()) accept();
+					else if (key.isReadable()) read(key);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			MessageDialog.showDialog("Error", "Multi-touch network source stopped: " + e.getMessage(), MessageDialog.ERROR_MESSAGE);
+		}
+		finally
+		{
+			for (SelectionKey key : selector.keys())
+				if (key.attachment() != null) disconnect(key);
+			
+			try
+			{
+				server.close();
+				selector.close();
+			}
+			catch (IOException e)
+			{
+				// nothing left to do
+			}
+		}
+	}
+	
+	private void accept() throws IOException
+	{
+		SocketChannel channel = server.accept();
+		if (channel == null) return;
+		
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Client(channel, nextDevice++));
+		clients++;
+	}
+	
+	private void read(SelectionKey key)
+	{
+		Client client = (Client) key.attachment();
+		
+		try
+		{
+			if (client.channel.read(client.buffer) < 0)
+			{
+				disconnect(key);
+				return;
+			}
+			
+			client.decode();
+		}
+		catch (IOException e)
+		{
+			disconnect(key);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// protocol error (reported without blocking the other clients)
+			new AnnounceFrame("Multi-touch network source: " + e.getMessage() + " (client " + client.channel.socket().getRemoteSocketAddress() + " disconnected)", ANNOUNCE_TIME);
+			disconnect(key);
+		}
+	}
+	
+	/**
+	 * Closes the connection of a client, and releases its fingers
+	 */
+	private void disconnect(SelectionKey key)
+	{
+		Client client = (Client) key.attachment();
+		key.attach(null);
+		key.cancel();
+		
+		try
+		{
+			client.channel.close();
+		}
+		catch (IOException e)
+		{
+			// the connection is lost anyway
+		}
+		
+		client.assembler.releaseAll();
+		clients--;
+	}
+	
+	/**
+	 * Dispatches a complete frame to all frame listeners
+	 */
+	public void frameReceived(TouchFrame frame)
+	{
+		for (TouchFrameListener l : listeners.getListeners())
+			l.frameReceived(frame);
+	}
+	
+	/**
+	 * Connection and decoding state of a client (only used by the receiving thread)
+	 */
+	private class Client
+	{
+		final SocketChannel			channel;
+		
+		final ByteBuffer			buffer		= ByteBuffer.allocateDirect(BUFFER_SIZE);
+		
+		final TouchFrameAssembler	assembler;
+		
+		final TouchEventFilter		filter		= new TouchEventFilter();
+		
+		boolean						connected	= false;
+		
+		/** Number of records left in the current batch */
+		int							remaining	= 0;
+		
+		Client(SocketChannel channel, int device)
+		{
+			this.channel = channel;
+			this.assembler = new TouchFrameAssembler(NetworkTouchSource.this, device);
+		}
+		
+		/**
+		 * Decodes (and dispatches) the complete records of the buffer, and keeps the incomplete
+		 * ones for the next read
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if the client does not follow the protocol
+		 */
+		void decode()
+		{
+			buffer.flip();
+			
+			final int limit = buffer.limit();
+			int position = 0;
+			
+			if (!connected)
+			{
+				if (limit < TouchTrace.HEADER_SIZE)
+				{
+					// wait for the rest of the header
+					buffer.compact();
+					return;
+				}
+				
+				TouchTrace.readHeader(buffer);
+				connected = true;
+				position = TouchTrace.HEADER_SIZE;
+			}
+			
+			filter.setInterest(interest);
+			assembler.setRecycling(recycling);
+			
+			for (;;)
+			{
+				if (remaining == 0)
+				{
+					if (limit - position < 4) break;
+					
+					remaining = buffer.getInt(position);
+					position += 4;
+					
+					if (remaining < 0) throw new IllegalArgumentException("Invalid batch size: " + remaining);
+					
+					if (remaining == 0) assembler.flush();
+					continue;
+				}
+				
+				if (limit - position < TouchTrace.RECORD_SIZE) break;
+				
+				int id = TouchTrace.readID(buffer, position);
+				
+				if (id >= 0 && id <= MAX_FINGER_ID && TouchTrace.accept(buffer, position, filter)) TouchTrace.readRecord(buffer, position, assembler);
+				
+				position += TouchTrace.RECORD_SIZE;
+				received++;
+				
+				// the batch holds whole frames
+				if (--remaining == 0) assembler.flush();
+			}
+			
+			buffer.position(position);
+			buffer.compact();
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+/**
+ * Policy applied by the native callback thread when the event queue of the dispatcher thread is
+ * full
+ * 
+ * @see TouchpadObservable#setAsynchronousDispatch(int, OverflowPolicy)
+ * @author adufour
+ */
+public enum OverflowPolicy
+{
+	/**
+	 * Wait until the dispatcher thread makes room in the queue (the native driver is slowed down
+	 * accordingly)
+	 */
+	BLOCK,
+	
+	/**
+	 * Discard the oldest queued event to make room for the new one
+	 */
+	DROP_OLDEST,
+	
+	/**
+	 * Discard the oldest queued event if it is a motion sample followed by a newer queued motion
+	 * sample of the same finger, otherwise wait as in {@link #BLOCK}. Since finger motion is
+	 * derived from absolute positions, a skipped motion sample is merged into the next one (and the
+	 * latest position always gets through), whereas state transitions, and the first sample after
+	 * each of them, are never lost
+	 */
+	COALESCE_MOTION
+}
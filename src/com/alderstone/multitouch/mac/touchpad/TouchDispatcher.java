@@ -0,0 +1,84 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread delivering the touch events queued by the native callback thread. This isolates the
+ * native driver from the listeners: however slow they are, the native side only pays for queuing
+ * the event.<br/>
+ * The assembler is shared with the previous and next dispatchers (and with the native callback
+ * thread when dispatching synchronously), and only used while holding its lock, so that the frame
+ * being assembled and the fingers touching the pad are handed over when the dispatcher changes.
+ * 
+ * @author adufour
+ */
+class TouchDispatcher extends Thread
+{
+	/**
+	 * Time (in nanoseconds) after which a frame being assembled is sent anyway if no new event
+	 * arrives (e.g. when fingers leave the pad without being reported as released)
+	 */
+	private static final long			FRAME_FLUSH_TIMEOUT	= 50000000L;
+	
+	private final TouchEventRing		ring;
+	
+	private final TouchFrameAssembler	assembler;
+	
+	private volatile boolean			running				= true;
+	
+	TouchDispatcher(TouchEventRing ring, TouchFrameAssembler assembler)
+	{
+		super("Multi-touch dispatcher");
+		setDaemon(true);
+		this.ring = ring;
+		this.assembler = assembler;
+	}
+	
+	TouchEventRing getRing()
+	{
+		return ring;
+	}
+	
+	@Override
+	public void run()
+	{
+		while (running)
+		{
+			if (drain() > 0) continue;
+			
+			// nothing left for now: if nothing comes soon, consider the current frame complete
+			if (!ring.await(FRAME_FLUSH_TIMEOUT) && running)
+			{
+				synchronized (assembler)
+				{
+					assembler.flush();
+				}
+			}
+		}
+		
+		// deliver what is left, which also makes room for an event offered while the producer
+		// switches to the next consumer (who then delivers it, see TouchEventRing)
+		if (!ring.isClosed()) drain();
+	}
+	
+	private int drain()
+	{
+		synchronized (assembler)
+		{
+			return ring.drainTo(assembler);
+		}
+	}
+	
+	/**
+	 * Asks the dispatcher thread to stop, once the events left in its queue have been delivered
+	 * (unless the queue was closed). This does not wait for the thread to terminate, since the
+	 * caller usually holds locks that the listeners being notified may need (e.g. to unregister
+	 * themselves). The next consumer, if any, shares the assembler lock, hence no two consumers
+	 * ever notify the listeners concurrently
+	 */
+	void shutdown()
+	{
+		running = false;
+		LockSupport.unpark(this);
+	}
+}
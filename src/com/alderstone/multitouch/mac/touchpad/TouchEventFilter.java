@@ -0,0 +1,144 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.util.Arrays;
+
+/**
+ * Rejects the native events that no listener is interested in (see {@link TouchInterest}),
+ * straight from the primitive callback arguments. Fingers being pressed or released always get
+ * through. The last state of each finger ID, and its
+ * position at the last delivered event, are kept in primitive tables, so that filtering an event
+ * neither allocates nor notifies anything.<br/>
+ * The filter is only used by the thread delivering the native events, except for
+ * {@link #setInterest(TouchInterest)} and {@link #reset()}, which may be called from any thread.
+ * 
+ * @author adufour
+ */
+class TouchEventFilter
+{
+	// native state identifiers (see FingerState#getStateFor(int))
+	
+	private static final int		HOVER_STATE		= 2;
+	
+	private static final int		PRESSED_STATE	= 4;
+	
+	private static final int		RELEASED_STATE	= 7;
+	
+	private volatile TouchInterest	interest		= TouchInterest.ALL;
+	
+	/** Set to forget the finger states (consumed by the delivering thread) */
+	private volatile boolean		resetPending	= false;
+	
+	// tables indexed by finger ID (only used by the delivering thread)
+	
+	private int[]					lastStates		= new int[32];
+	
+	private float[]					lastX			= new float[32];
+	
+	private float[]					lastY			= new float[32];
+	
+	/** Number of fingers currently pressed */
+	private int						pressedCount	= 0;
+	
+	/**
+	 * @param newInterest
+	 *            the events to accept from now on
+	 */
+	void setInterest(TouchInterest newInterest)
+	{
+		interest = newInterest;
+	}
+	
+	TouchInterest getInterest()
+	{
+		return interest;
+	}
+	
+	/**
+	 * Forgets the finger states (e.g. once the source stops listening to the native events)
+	 */
+	void reset()
+	{
+		resetPending = true;
+	}
+	
+	/**
+	 * @return <code>true</code> if the specified native event should be delivered
+	 */
+	boolean accept(int id, int state, float x, float y)
+	{
+		if (resetPending)
+		{
+			resetPending = false;
+			Arrays.fill(lastStates, 0);
+			pressedCount = 0;
+		}
+		
+		if (id < 0) return true;
+		
+		if (id >= lastStates.length) grow(id + 1);
+		
+		int lastState = lastStates[id];
+		lastStates[id] = state;
+		
+		if (lastState == PRESSED_STATE && state != PRESSED_STATE) pressedCount--;
+		else if (state == PRESSED_STATE && lastState != PRESSED_STATE) pressedCount++;
+		
+		TouchInterest i = interest;
+		
+		boolean accepted;
+		
+		if (i.isAll()) accepted = true;
+		else if (state != lastState) accepted = isContact(state) || isContact(lastState) || (i.getEvents() & TouchInterest.STATE_CHANGES) != 0 || acceptMotion(i, id, state, x, y);
+		else accepted = acceptMotion(i, id, state, x, y);
+		
+		if (accepted)
+		{
+			lastX[id] = x;
+			lastY[id] = y;
+		}
+		
+		return accepted;
+	}
+	
+	/**
+	 * @return <code>true</code> if the specified state is pressed or released. Transitions into and
+	 *         out of these states are always accepted (whatever the interest), so that no listener
+	 *         ever misses a finger being pressed or released (e.g. a still finger lifted)
+	 */
+	private static boolean isContact(int state)
+	{
+		return state == PRESSED_STATE || state == RELEASED_STATE;
+	}
+	
+	/**
+	 * @return <code>true</code> if the specified event is a motion the interest accepts
+	 */
+	private boolean acceptMotion(TouchInterest i, int id, int state, float x, float y)
+	{
+		if (state == HOVER_STATE) return (i.getEvents() & TouchInterest.HOVER) != 0;
+		
+		if (state != PRESSED_STATE || (i.getEvents() & TouchInterest.MOTION) == 0) return false;
+		
+		if (!i.acceptsFingerCount(pressedCount)) return false;
+		
+		float threshold = i.getMotionThreshold();
+		
+		return threshold == 0f || Math.abs(x - lastX[id]) > threshold || Math.abs(y - lastY[id]) > threshold;
+	}
+	
+	private void grow(int minLength)
+	{
+		int length = Math.max(minLength, lastStates.length * 2);
+		
+		int[] states = new int[length];
+		float[] xs = new float[length], ys = new float[length];
+		
+		System.arraycopy(lastStates, 0, states, 0, lastStates.length);
+		System.arraycopy(lastX, 0, xs, 0, lastX.length);
+		System.arraycopy(lastY, 0, ys, 0, lastY.length);
+		
+		lastStates = states;
+		lastX = xs;
+		lastY = ys;
+	}
+}
@@ -0,0 +1,359 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free single-producer / single-consumer queue of native touch events. Events are
+ * stored field by field in preallocated primitive arrays, so that the producer (the native
+ * callback thread) only performs a handful of array writes per event, and never allocates.<br/>
+ * The consumer is woken up only if it was waiting for events, hence the producer does not pay for
+ * a thread hand-off while the consumer is busy.<br/>
+ * When the dispatch settings change, the producer moves on to a new queue, which drains the queue
+ * it replaces before its own events, so that no event is lost or reordered. Consumers only drain
+ * queues while holding the lock of the assembler they drain into.
+ * 
+ * @author adufour
+ */
+class TouchEventRing
+{
+	/**
+	 * Native state identifier of a pressed finger (see {@link FingerState#getStateFor(int)})
+	 */
+	private static final int		PRESSED_STATE_ID	= 4;
+	
+	/**
+	 * Time to wait (in nanoseconds) before checking again for room in the queue when blocking
+	 */
+	private static final long		BLOCK_PARK_NANOS	= 50000;
+	
+	/**
+	 * Number of fingers whose last state is tracked by the producer (fingers beyond are never
+	 * coalesced)
+	 */
+	private static final int		TRACKED_FINGERS		= 32;
+	
+	private final OverflowPolicy	policy;
+	
+	private final int				mask;
+	
+	private final int[]				frames, ids, states;
+	
+	private final double[]			timestamps;
+	
+	private final float[]			sizes, xs, ys, dxs, dys, angles, majorAxes, minorAxes;
+	
+	/**
+	 * Whether each queued event is a motion sample following another motion sample of the same
+	 * finger (i.e. not the first sample after a state transition)
+	 */
+	private final boolean[]			continuations;
+	
+	/** Last state offered for each finger (only used by the producer, see isContinuation()) */
+	private final int[]				lastIds				= new int[TRACKED_FINGERS];
+	
+	private final int[]				lastStates			= new int[TRACKED_FINGERS];
+	
+	/**
+	 * Index of the next event to read (written by the consumer, and by the producer when dropping
+	 * events)
+	 */
+	private final AtomicLong		head				= new AtomicLong();
+	
+	/**
+	 * Index of the next event to write (written by the producer only)
+	 */
+	private final AtomicLong		tail				= new AtomicLong();
+	
+	private volatile Thread			waitingConsumer		= null;
+	
+	private volatile long			dropped				= 0;
+	
+	private volatile long			coalesced			= 0;
+	
+	/**
+	 * Queue the producer wrote into before this one (if any), drained first until the producer
+	 * has switched to this queue
+	 */
+	private volatile TouchEventRing	previous;
+	
+	/**
+	 * Queue replacing this one (if any), whose consumer is also woken up by the events offered here
+	 */
+	private volatile TouchEventRing	successor			= null;
+	
+	/** Whether the events offered from now on are discarded */
+	private volatile boolean		closed				= false;
+	
+	/**
+	 * @param capacity
+	 *            the maximum number of queued events (rounded up to the next power of 2)
+	 * @param policy
+	 *            the policy to apply when the queue is full
+	 * @param previous
+	 *            the queue replaced by this one (or <code>null</code>), whose events are
+	 *            delivered first
+	 */
+	TouchEventRing(int capacity, OverflowPolicy policy, TouchEventRing previous)
+	{
+		if (capacity < 2) throw new IllegalArgumentException("Queue capacity should be at least 2");
+		
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		
+		this.policy = policy;
+		this.mask = size - 1;
+		this.previous = previous;
+		
+		frames = new int[size];
+		ids = new int[size];
+		states = new int[size];
+		timestamps = new double[size];
+		sizes = new float[size];
+		xs = new float[size];
+		ys = new float[size];
+		dxs = new float[size];
+		dys = new float[size];
+		angles = new float[size];
+		majorAxes = new float[size];
+		minorAxes = new float[size];
+		continuations = new boolean[size];
+		
+		if (previous != null) previous.successor = this;
+	}
+	
+	/**
+	 * Queues a new event (producer thread only)
+	 */
+	void offer(int frame, double timestamp, int id, int state, float size, float x, float y, float dx, float dy, float angle, float majorAxis, float minorAxis)
+	{
+		final long t = tail.get();
+		final int capacity = mask + 1;
+		final boolean continuation = isContinuation(id, state);
+		
+		while (t - head.get() >= capacity)
+		{
+			if (closed) return;
+			
+			long h = head.get();
+			
+			if (policy == OverflowPolicy.DROP_OLDEST)
+			{
+				// if this fails, the consumer has just made room
+				if (t - h >= capacity && head.compareAndSet(h, h + 1)) dropped++;
+			}
+			else if (policy == OverflowPolicy.COALESCE_MOTION && isSuperseded(h, t))
+			{
+				// the oldest event is a motion sample, merged into a newer one of the same finger
+				if (t - h >= capacity && head.compareAndSet(h, h + 1)) coalesced++;
+			}
+			else
+			{
+				wakeConsumer();
+				LockSupport.parkNanos(BLOCK_PARK_NANOS);
+			}
+		}
+		
+		final int i = (int) t & mask;
+		frames[i] = frame;
+		timestamps[i] = timestamp;
+		ids[i] = id;
+		states[i] = state;
+		sizes[i] = size;
+		xs[i] = x;
+		ys[i] = y;
+		dxs[i] = dx;
+		dys[i] = dy;
+		angles[i] = angle;
+		majorAxes[i] = majorAxis;
+		minorAxes[i] = minorAxis;
+		continuations[i] = continuation;
+		
+		// publish the event
+		tail.lazySet(t + 1);
+		
+		wakeConsumer();
+	}
+	
+	/**
+	 * Updates the last state of the specified finger (producer thread only)
+	 * 
+	 * @return <code>true</code> if the event is a motion sample following another motion sample
+	 *         of the same finger
+	 */
+	private boolean isContinuation(int id, int state)
+	{
+		int free = -1;
+		
+		for (int k = 0; k < TRACKED_FINGERS; k++)
+		{
+			if (lastIds[k] == id && lastStates[k] != 0)
+			{
+				boolean continuation = state == PRESSED_STATE_ID && lastStates[k] == PRESSED_STATE_ID;
+				lastStates[k] = state;
+				return continuation;
+			}
+			
+			// entries of fingers that are not pressed anymore can be reused
+			if (free == -1 && lastStates[k] != PRESSED_STATE_ID) free = k;
+		}
+		
+		if (free != -1)
+		{
+			lastIds[free] = id;
+			lastStates[free] = state;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @return <code>true</code> if the event at the specified index is a motion sample that a later
+	 *         queued motion sample of the same finger supersedes (producer thread only)
+	 */
+	private boolean isSuperseded(long index, long t)
+	{
+		int i = (int) index & mask;
+		if (!continuations[i]) return false;
+		
+		for (long j = index + 1; j < t; j++)
+		{
+			int k = (int) j & mask;
+			if (ids[k] == ids[i]) return states[k] == PRESSED_STATE_ID;
+		}
+		
+		return false;
+	}
+	
+	private void wakeConsumer()
+	{
+		Thread consumer = waitingConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+		
+		TouchEventRing s = successor;
+		if (s != null) s.wakeConsumer();
+	}
+	
+	/**
+	 * Discards the events queued and offered from now on (e.g. once nobody listens anymore), so
+	 * that the producer never waits for a consumer that has stopped
+	 */
+	void close()
+	{
+		closed = true;
+	}
+	
+	boolean isClosed()
+	{
+		return closed;
+	}
+	
+	/**
+	 * Sends all queued events (starting with those of the replaced queues) to the specified
+	 * assembler. The caller must hold the lock of the assembler
+	 * 
+	 * @return the number of events sent
+	 */
+	int drainTo(TouchFrameAssembler assembler)
+	{
+		int n = 0;
+		
+		TouchEventRing p = previous;
+		if (p != null)
+		{
+			// once the producer has written into this queue, it does not write into the previous
+			// one anymore (and its last events there are visible)
+			boolean switched = tail.get() > 0;
+			n += p.drainTo(assembler);
+			
+			// otherwise, events queued here meanwhile may precede the last ones of the previous
+			// queue, and wait for the next call
+			if (!switched) return n;
+			previous = null;
+		}
+		
+		long h;
+		while ((h = head.get()) < tail.get() && !closed)
+		{
+			final int i = (int) h & mask;
+			
+			int frame = frames[i];
+			double timestamp = timestamps[i];
+			int id = ids[i];
+			int state = states[i];
+			float size = sizes[i];
+			float x = xs[i];
+			float y = ys[i];
+			float dx = dxs[i];
+			float dy = dys[i];
+			float angle = angles[i];
+			float majorAxis = majorAxes[i];
+			float minorAxis = minorAxes[i];
+			
+			// if this fails, the event was dropped (and possibly overwritten) while being read
+			if (!head.compareAndSet(h, h + 1)) continue;
+			
+			assembler.offer(frame, timestamp, id, state, size, x, y, dx, dy, angle, majorAxis, minorAxis);
+			n++;
+		}
+		
+		return n;
+	}
+	
+	/**
+	 * Waits until new events are queued or the specified time has elapsed (consumer thread only)
+	 * 
+	 * @param timeoutNanos
+	 * @return <code>true</code> if events are available
+	 */
+	boolean await(long timeoutNanos)
+	{
+		waitingConsumer = Thread.currentThread();
+		try
+		{
+			// check again now that the producer will wake us up
+			if (hasEvents()) return true;
+			
+			LockSupport.parkNanos(this, timeoutNanos);
+			
+			return hasEvents();
+		}
+		finally
+		{
+			waitingConsumer = null;
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if this queue is empty (regardless of the replaced queues)
+	 */
+	boolean isEmpty()
+	{
+		return head.get() >= tail.get();
+	}
+	
+	/**
+	 * @return <code>true</code> if this queue or one of the queues it replaces holds events
+	 */
+	private boolean hasEvents()
+	{
+		TouchEventRing p = previous;
+		return !isEmpty() || (p != null && p.hasEvents());
+	}
+	
+	/**
+	 * @return the number of events discarded with the {@link OverflowPolicy#DROP_OLDEST} policy
+	 */
+	long getDroppedCount()
+	{
+		return dropped;
+	}
+	
+	/**
+	 * @return the number of motion samples discarded with the
+	 *         {@link OverflowPolicy#COALESCE_MOTION} policy
+	 */
+	long getCoalescedCount()
+	{
+		return coalesced;
+	}
+}
@@ -0,0 +1,156 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+/**
+ * Snapshot of all the fingers reported by a touch device during a single hardware frame.<br/>
+ * Frames are immutable, unless the touchpad runs in recycling mode (see
+ * {@link TouchpadObservable#setRecycling(boolean)}), in which case a frame and its fingers are
+ * only valid during the notification. Listeners that need to keep them should use {@link #copy()}
+ * 
+ * @author adufour
+ */
+public class TouchFrame
+{
+	/**
+	 * Device of the frames sent by the native touchpad driver
+	 */
+	public static final int	NATIVE_DEVICE	= 0;
+	
+	private final int		device;
+	
+	private int				frame;
+	
+	private double			timestamp;
+	
+	private Finger[]		fingers;
+	
+	private int				count;
+	
+	TouchFrame(int frame, double timestamp, Finger[] fingers)
+	{
+		this(NATIVE_DEVICE, frame, timestamp, fingers);
+	}
+	
+	TouchFrame(int device, int frame, double timestamp, Finger[] fingers)
+	{
+		this.device = device;
+		set(frame, timestamp, fingers, fingers.length);
+	}
+	
+	void set(int frame, double timestamp, Finger[] fingers, int count)
+	{
+		this.frame = frame;
+		this.timestamp = timestamp;
+		this.fingers = fingers;
+		this.count = count;
+	}
+	
+	/**
+	 * @return a detached copy of this frame (and its fingers)
+	 */
+	public TouchFrame copy()
+	{
+		Finger[] copies = new Finger[count];
+		for (int i = 0; i < count; i++)
+			copies[i] = fingers[i].copy();
+		return new TouchFrame(device, frame, timestamp, copies);
+	}
+	
+	/**
+	 * Merges the specified (more recent) frame into this one, if it only carries motion, i.e. if
+	 * each of its fingers is already part of this frame, in the same state. The merged fingers are
+	 * overwritten, and this frame takes the number and timestamp of the specified one. This frame
+	 * should therefore be a detached copy (see {@link #copy()})
+	 * 
+	 * @param next
+	 *            a more recent frame
+	 * @return <code>true</code> if the frames were merged, <code>false</code> if the specified
+	 *         frame carries a state change or comes from another device (this frame is then left
+	 *         untouched)
+	 */
+	public boolean conflate(TouchFrame next)
+	{
+		if (next.device != device) return false;
+		
+		for (int i = 0; i < next.count; i++)
+		{
+			Finger f = getFingerByID(next.fingers[i].getID());
+			if (f == null || f.getState() != next.fingers[i].getState()) return false;
+		}
+		
+		for (int i = 0; i < next.count; i++)
+			getFingerByID(next.fingers[i].getID()).copyFrom(next.fingers[i]);
+		
+		frame = next.frame;
+		timestamp = next.timestamp;
+		return true;
+	}
+	
+	/**
+	 * @return the device that reported this frame (the finger IDs are only unique within a device)
+	 */
+	public int getDevice()
+	{
+		return device;
+	}
+	
+	/**
+	 * @return the native frame number shared by all the fingers of this frame
+	 */
+	public int getFrame()
+	{
+		return frame;
+	}
+	
+	/**
+	 * @return the native timestamp of this frame (in seconds)
+	 */
+	public double getTimestamp()
+	{
+		return timestamp;
+	}
+	
+	/**
+	 * @return the number of fingers reported in this frame
+	 */
+	public int getFingerCount()
+	{
+		return count;
+	}
+	
+	/**
+	 * @param index
+	 *            a finger index, between 0 and {@link #getFingerCount()} - 1
+	 * @return the finger at the specified index (in native report order)
+	 */
+	public Finger getFinger(int index)
+	{
+		if (index >= count) throw new ArrayIndexOutOfBoundsException(index);
+		return fingers[index];
+	}
+	
+	/**
+	 * @param id
+	 *            a native finger ID
+	 * @return the finger with the specified ID, or <code>null</code> if it is not part of this
+	 *         frame
+	 */
+	public Finger getFingerByID(int id)
+	{
+		for (int i = 0; i < count; i++)
+			if (fingers[i].getID() == id) return fingers[i];
+		return null;
+	}
+	
+	/**
+	 * @param state
+	 *            a finger state (see constants in the {@link FingerState} class)
+	 * @return the number of fingers of this frame in the specified state
+	 */
+	public int getCount(FingerState state)
+	{
+		int cpt = 0;
+		for (int i = 0; i < count; i++)
+			if (fingers[i].getState() == state) cpt++;
+		return cpt;
+	}
+}
@@ -0,0 +1,219 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+/**
+ * Groups the per-finger native callbacks sharing the same frame number into {@link TouchFrame}
+ * snapshots. The native layer reports the fingers of a frame consecutively, hence a frame is
+ * complete at the latest when a callback from another frame is received. To avoid delivering every
+ * frame one hardware frame late, a frame is flushed as soon as all the fingers still touching the
+ * pad in the previous frame have been reported. A finger appearing after them is then delivered in
+ * a second frame with the same number (which completes the first one).<br/>
+ * Incoming fingers are written into preallocated records. In recycling mode, these records are
+ * handed to the listeners directly (through a single reused frame), so that assembling and
+ * dispatching a frame does not allocate anything.
+ * 
+ * @author adufour
+ */
+class TouchFrameAssembler
+{
+	/** Native identifier of the released state (see FingerState#getStateFor(int)) */
+	private static final int			RELEASED_STATE	= 7;
+	
+	private final TouchFrameListener	target;
+	
+	/** Device of the assembled frames */
+	private final int					device;
+	
+	private final TouchFrame			recycledFrame;
+	
+	private volatile boolean			recycling		= false;
+	
+	/** Whether the frame being assembled and the alive fingers should be forgotten */
+	private volatile boolean			resetPending	= false;
+	
+	private Finger[]					pending			= newRecords(16, 0);
+	
+	private int							pendingCount	= 0;
+	
+	private int							pendingReleased	= 0;
+	
+	/** Number of pending fingers that were alive in the last flushed frame */
+	private int							pendingAlive	= 0;
+	
+	private int							pendingFrame;
+	
+	private double						pendingTimestamp;
+	
+	/**
+	 * IDs of the fingers still touching the pad in the last flushed frame
+	 */
+	private int[]						aliveIDs		= new int[16];
+	
+	private int							aliveCount		= 0;
+	
+	/** Number of the last flushed frame */
+	private int							flushedFrame	= -1;
+	
+	TouchFrameAssembler(TouchFrameListener target)
+	{
+		this(target, TouchFrame.NATIVE_DEVICE);
+	}
+	
+	TouchFrameAssembler(TouchFrameListener target, int device)
+	{
+		this.target = target;
+		this.device = device;
+		this.recycledFrame = new TouchFrame(device, 0, 0, new Finger[0]);
+	}
+	
+	void setRecycling(boolean recycling)
+	{
+		this.recycling = recycling;
+	}
+	
+	boolean isRecycling()
+	{
+		return recycling;
+	}
+	
+	/**
+	 * Forgets the frame being assembled and the fingers touching the pad (e.g. once nobody listens
+	 * anymore, since the following events are lost). The reset is performed by the thread
+	 * offering the next event
+	 */
+	void requestReset()
+	{
+		resetPending = true;
+	}
+	
+	void offer(int frame, double timestamp, int id, int state, float size, float x, float y, float dx, float dy, float angle, float majorAxis, float minorAxis)
+	{
+		if (resetPending) reset();
+		
+		if (pendingCount > 0 && frame != pendingFrame) flush();
+		
+		if (pendingCount == 0)
+		{
+			pendingFrame = frame;
+			pendingTimestamp = timestamp;
+		}
+		
+		if (pendingCount == pending.length)
+		{
+			Finger[] larger = newRecords(pending.length * 2, pendingCount);
+			System.arraycopy(pending, 0, larger, 0, pendingCount);
+			pending = larger;
+		}
+		
+		Finger f = pending[pendingCount++];
+		f.set(frame, timestamp, id, state, size, x, y, dx, dy, angle, majorAxis, minorAxis);
+		if (f.getState() == FingerState.RELEASED) pendingReleased++;
+		if (isAlive(id)) pendingAlive++;
+		
+		// all the fingers of the previous frame were reported (or all are leaving the pad, in which
+		// case nothing else will come for this frame) => do not wait for the next frame
+		if (pendingAlive == aliveCount && (aliveCount > 0 || pendingReleased == pendingCount)) flush();
+	}
+	
+	/**
+	 * Sends the frame being assembled (if any) to the target listener
+	 */
+	void flush()
+	{
+		if (resetPending) reset();
+		
+		if (pendingCount == 0) return;
+		
+		// a frame flushed in several parts only updates the fingers it holds
+		if (pendingFrame != flushedFrame) aliveCount = 0;
+		flushedFrame = pendingFrame;
+		
+		for (int i = 0; i < pendingCount; i++)
+		{
+			if (pending[i].getState() == FingerState.RELEASED) removeAlive(pending[i].getID());
+			else if (!isAlive(pending[i].getID())) addAlive(pending[i].getID());
+		}
+		
+		TouchFrame frame;
+		
+		if (recycling)
+		{
+			frame = recycledFrame;
+			frame.set(pendingFrame, pendingTimestamp, pending, pendingCount);
+		}
+		else
+		{
+			Finger[] fingers = new Finger[pendingCount];
+			for (int i = 0; i < pendingCount; i++)
+				fingers[i] = pending[i].copy();
+			frame = new TouchFrame(device, pendingFrame, pendingTimestamp, fingers);
+		}
+		
+		pendingCount = 0;
+		pendingReleased = 0;
+		pendingAlive = 0;
+		
+		target.frameReceived(frame);
+	}
+	
+	/**
+	 * Sends the frame being assembled (if any), followed by a frame releasing the fingers still
+	 * touching the pad (e.g. once the device is disconnected, so that no finger remains pressed)
+	 */
+	void releaseAll()
+	{
+		flush();
+		
+		// the last offer flushes the frame, which empties the alive IDs and ends the loop
+		int frame = pendingFrame + 1;
+		for (int a = 0; a < aliveCount; a++)
+			offer(frame, pendingTimestamp, aliveIDs[a], RELEASED_STATE, 0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f);
+		
+		flush();
+	}
+	
+	private void reset()
+	{
+		resetPending = false;
+		pendingCount = pendingReleased = pendingAlive = aliveCount = 0;
+		flushedFrame = -1;
+	}
+	
+	private boolean isAlive(int id)
+	{
+		for (int a = 0; a < aliveCount; a++)
+			if (aliveIDs[a] == id) return true;
+		return false;
+	}
+	
+	private void addAlive(int id)
+	{
+		if (aliveCount == aliveIDs.length)
+		{
+			int[] larger = new int[aliveIDs.length * 2];
+			System.arraycopy(aliveIDs, 0, larger, 0, aliveCount);
+			aliveIDs = larger;
+		}
+		aliveIDs[aliveCount++] = id;
+	}
+	
+	private void removeAlive(int id)
+	{
+		for (int a = 0; a < aliveCount; a++)
+			if (aliveIDs[a] == id)
+			{
+				aliveIDs[a] = aliveIDs[--aliveCount];
+				return;
+			}
+	}
+	
+	/**
+	 * @return an array of the specified length, filled with new records from the specified index
+	 */
+	private static Finger[] newRecords(int length, int from)
+	{
+		Finger[] records = new Finger[length];
+		for (int i = from; i < length; i++)
+			records[i] = new Finger();
+		return records;
+	}
+}
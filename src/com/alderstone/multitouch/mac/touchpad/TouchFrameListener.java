@@ -0,0 +1,17 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+/**
+ * Interface used to receive whole touchpad frames, i.e. all the fingers sharing the same native
+ * frame number, in a single notification
+ * 
+ * @author adufour
+ */
+public interface TouchFrameListener
+{
+	/**
+	 * Fired once per hardware frame, after all the fingers of that frame have been reported
+	 * 
+	 * @param frame
+	 */
+	void frameReceived(TouchFrame frame);
+}
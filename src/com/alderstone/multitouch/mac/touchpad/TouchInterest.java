@@ -0,0 +1,177 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+/**
+ * Declares which native events a frame listener is interested in (see
+ * {@link TouchSource#addFrameListener(TouchFrameListener, TouchInterest)}). Events that no
+ * listener of a source is interested in are rejected straight from the native callback, before
+ * any {@link Finger} is created and before any listener is notified. An interest is a hint: the
+ * events accepted for any listener of the source reach all of them.<br/>
+ * <br/>
+ * An interest combines:
+ * <ul>
+ * <li>the kinds of events to receive: {@link #STATE_CHANGES} (the first event of a finger in a
+ * new state), {@link #MOTION} (a pressed finger moving by more than the motion threshold since
+ * its last delivered event) and {@link #HOVER} (a finger moving above the pad);</li>
+ * <li>the motion threshold, in normalized pad coordinates (0 to receive every motion);</li>
+ * <li>the numbers of fingers touching the pad for which motion is wanted (see
+ * {@link #fingerCounts(int...)}). State changes are delivered whatever the number of fingers, so
+ * that listeners can always keep track of the finger states.</li>
+ * </ul>
+ * Fingers being pressed or released are delivered whatever the interest (even without
+ * {@link #STATE_CHANGES}), so that no finger ever remains pressed for the listeners. Interests are
+ * immutable.
+ * 
+ * @author adufour
+ */
+public final class TouchInterest
+{
+	/**
+	 * Events where a finger changes state (pressed, released, hovering...)
+	 */
+	public static final int				STATE_CHANGES		= 1;
+	
+	/**
+	 * Events where a pressed finger moves by more than the motion threshold
+	 */
+	public static final int				MOTION				= 2;
+	
+	/**
+	 * Events where a finger moves above the pad
+	 */
+	public static final int				HOVER				= 4;
+	
+	/**
+	 * Finger count mask accepting any number of fingers
+	 */
+	public static final int				ANY_FINGER_COUNT	= -1;
+	
+	/**
+	 * Interest in every event (the default)
+	 */
+	public static final TouchInterest	ALL					= new TouchInterest(STATE_CHANGES | MOTION | HOVER, 0f, ANY_FINGER_COUNT);
+	
+	/**
+	 * Interest in the state changes only
+	 */
+	public static final TouchInterest	STATE_CHANGES_ONLY	= new TouchInterest(STATE_CHANGES, 0f, ANY_FINGER_COUNT);
+	
+	private final int					events;
+	
+	private final float					motionThreshold;
+	
+	private final int					fingerCounts;
+	
+	/**
+	 * @param events
+	 *            the kinds of events to receive (a combination of {@link #STATE_CHANGES},
+	 *            {@link #MOTION} and {@link #HOVER})
+	 * @param motionThreshold
+	 *            the minimum motion (along X or Y, in normalized pad coordinates) since the last
+	 *            delivered event of a finger, or 0 to receive every motion
+	 * @param fingerCounts
+	 *            the numbers of pressed fingers for which motion is wanted (see
+	 *            {@link #fingerCounts(int...)}), or {@link #ANY_FINGER_COUNT}
+	 */
+	public TouchInterest(int events, float motionThreshold, int fingerCounts)
+	{
+		if (motionThreshold < 0f) throw new IllegalArgumentException("The motion threshold cannot be negative");
+		
+		this.events = events;
+		this.motionThreshold = motionThreshold;
+		this.fingerCounts = fingerCounts;
+	}
+	
+	/**
+	 * @param counts
+	 *            numbers of fingers pressed on the pad (from 0 to 31)
+	 * @return the finger count mask accepting the specified numbers of fingers
+	 */
+	public static int fingerCounts(int... counts)
+	{
+		int mask = 0;
+		for (int count : counts)
+		{
+			if (count < 0 || count > 31) throw new IllegalArgumentException("Invalid finger count: " + count);
+			mask |= 1 << count;
+		}
+		return mask;
+	}
+	
+	/**
+	 * @return the kinds of events to receive
+	 */
+	public int getEvents()
+	{
+		return events;
+	}
+	
+	public float getMotionThreshold()
+	{
+		return motionThreshold;
+	}
+	
+	public int getFingerCounts()
+	{
+		return fingerCounts;
+	}
+	
+	/**
+	 * @return <code>true</code> if this interest accepts every event
+	 */
+	public boolean isAll()
+	{
+		return events == (STATE_CHANGES | MOTION | HOVER) && motionThreshold == 0f && fingerCounts == ANY_FINGER_COUNT;
+	}
+	
+	/**
+	 * @return <code>true</code> if motion is wanted while the specified number of fingers is
+	 *         pressed
+	 */
+	public boolean acceptsFingerCount(int count)
+	{
+		return count < 32 && (fingerCounts & (1 << count)) != 0;
+	}
+	
+	/**
+	 * @return an interest accepting all the events accepted by this interest or the specified one
+	 */
+	public TouchInterest union(TouchInterest other)
+	{
+		boolean motion = (events & MOTION) != 0, otherMotion = (other.events & MOTION) != 0;
+		
+		float threshold;
+		int counts;
+		
+		if (motion && otherMotion)
+		{
+			threshold = Math.min(motionThreshold, other.motionThreshold);
+			counts = fingerCounts | other.fingerCounts;
+		}
+		else if (otherMotion)
+		{
+			threshold = other.motionThreshold;
+			counts = other.fingerCounts;
+		}
+		else
+		{
+			threshold = motionThreshold;
+			counts = fingerCounts;
+		}
+		
+		return new TouchInterest(events | other.events, threshold, counts);
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("TouchInterest[");
+		if ((events & STATE_CHANGES) != 0) sb.append(" state changes");
+		if ((events & MOTION) != 0)
+		{
+			sb.append(" motion > ").append(motionThreshold);
+			if (fingerCounts != ANY_FINGER_COUNT) sb.append(" (finger counts: 0x").append(Integer.toHexString(fingerCounts)).append(")");
+		}
+		if ((events & HOVER) != 0) sb.append(" hover");
+		return sb.append(" ]").toString();
+	}
+}
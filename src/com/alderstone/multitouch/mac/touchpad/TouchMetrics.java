@@ -0,0 +1,425 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Low-overhead counters and latency histograms of a touch pipeline stage, published via JMX (see
+ * {@link #register(String)}). Recording takes neither a lock nor an allocation; rates are only
+ * computed when read. Counters are exact, but durations are only measured on one frame out of
+ * {@link #setSamplingInterval(int) a few} (reading the clock costs as much as processing an
+ * event).<br/>
+ * <br/>
+ * The native timestamps and {@link System#nanoTime()} have different origins: the latency is
+ * therefore calibrated against the smallest offset ever observed between the two clocks, i.e. it
+ * measures the time above the fastest delivery seen so far (which is a good estimate as soon as
+ * one frame went through an idle pipeline).
+ * 
+ * @author adufour
+ */
+public class TouchMetrics implements TouchMetricsMXBean
+{
+	/**
+	 * Default number of frames per timed frame
+	 */
+	public static final int				DEFAULT_SAMPLING_INTERVAL	= 8;
+	
+	private final AtomicLong			events						= new AtomicLong();
+	
+	private final AtomicLong			frames						= new AtomicLong();
+	
+	private final AtomicLong			filtered					= new AtomicLong();
+	
+	private final AtomicLong			dropped						= new AtomicLong();
+	
+	private final AtomicLong			coalesced					= new AtomicLong();
+	
+	private final AtomicLong			overruns					= new AtomicLong();
+	
+	private final AtomicLong			slowListeners				= new AtomicLong();
+	
+	private final LatencyHistogram		latency						= new LatencyHistogram();
+	
+	private final String[]				listenerTypes;
+	
+	private final LatencyHistogram[]	listenerTimes;
+	
+	private volatile int				samplingInterval			= DEFAULT_SAMPLING_INTERVAL;
+	
+	/** Frames started since the last timed frame (only used by the thread recording the frames) */
+	private int							untimedFrames				= 0;
+	
+	/** Smallest offset (in nanoseconds) between the local and native clocks */
+	private volatile long				minClockOffset				= Long.MAX_VALUE;
+	
+	/** Event queue currently feeding this stage (its losses are added to the counters) */
+	private volatile TouchEventRing		ring						= null;
+	
+	// rate sampling (guarded by this)
+	
+	private long						lastSampleTime				= System.nanoTime();
+	private long						lastEventCount				= 0;
+	private long						lastFrameCount				= 0;
+	private double						eventsPerSecond				= 0.0;
+	private double						framesPerSecond				= 0.0;
+	
+	private ObjectName					registeredName				= null;
+	
+	/**
+	 * @param listenerTypes
+	 *            the names of the listener types whose notification time is measured (see
+	 *            {@link #recordListenerTime(int, long)})
+	 */
+	public TouchMetrics(String... listenerTypes)
+	{
+		this.listenerTypes = listenerTypes.clone();
+		this.listenerTimes = new LatencyHistogram[listenerTypes.length];
+		for (int i = 0; i < listenerTimes.length; i++)
+			listenerTimes[i] = new LatencyHistogram();
+	}
+	
+	/**
+	 * Publishes these metrics in the platform MBean server
+	 * 
+	 * @param name
+	 *            the JMX object name (e.g. "com.alderstone.multitouch:type=Touchpad")
+	 * @return <code>true</code> if the metrics were registered
+	 */
+	public synchronized boolean register(String name)
+	{
+		if (registeredName != null) return true;
+		
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (!server.isRegistered(objectName)) server.registerMBean(this, objectName);
+			registeredName = objectName;
+			return true;
+		}
+		catch (JMException e)
+		{
+			// monitoring is optional
+			return false;
+		}
+		catch (SecurityException e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * Removes these metrics from the platform MBean server (if they were registered)
+	 */
+	public synchronized void unregister()
+	{
+		if (registeredName == null) return;
+		
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		}
+		catch (JMException e)
+		{
+			// already gone
+		}
+		registeredName = null;
+	}
+	
+	/**
+	 * Sets how often durations are measured
+	 * 
+	 * @param interval
+	 *            the number of frames per timed frame (1 to time every frame)
+	 */
+	public void setSamplingInterval(int interval)
+	{
+		if (interval < 1) throw new IllegalArgumentException("The sampling interval should be at least 1");
+		samplingInterval = interval;
+	}
+	
+	/**
+	 * @return the number of frames per timed frame
+	 */
+	public int getSamplingInterval()
+	{
+		return samplingInterval;
+	}
+	
+	// recording
+	
+	/**
+	 * Counts the specified number of received events
+	 */
+	public void eventsReceived(int count)
+	{
+		events.addAndGet(count);
+	}
+	
+	/**
+	 * Counts the specified number of events that were filtered out
+	 */
+	public void eventsFiltered(int count)
+	{
+		filtered.addAndGet(count);
+	}
+	
+	/**
+	 * Counts the specified number of events merged into pending ones
+	 */
+	public void eventsCoalesced(int count)
+	{
+		coalesced.addAndGet(count);
+	}
+	
+	/**
+	 * Counts a listener exceeding its time budget
+	 * 
+	 * @param first
+	 *            <code>true</code> if this listener never exceeded its time budget before
+	 */
+	public void listenerOverrun(boolean first)
+	{
+		overruns.incrementAndGet();
+		if (first) slowListeners.incrementAndGet();
+	}
+	
+	/**
+	 * Counts a new frame
+	 * 
+	 * @return <code>true</code> if durations should be measured while processing this frame
+	 *         (see {@link #recordListenerTime(int, long)} and {@link #frameCompleted(double)})
+	 */
+	public boolean frameStarted()
+	{
+		frames.incrementAndGet();
+		
+		if (++untimedFrames < samplingInterval) return false;
+		
+		untimedFrames = 0;
+		return true;
+	}
+	
+	/**
+	 * Records the latency of a timed frame
+	 * 
+	 * @param timestamp
+	 *            the native timestamp of the frame (in seconds)
+	 */
+	public void frameCompleted(double timestamp)
+	{
+		long offset = System.nanoTime() - (long) (timestamp * 1e9);
+		long min = minClockOffset;
+		if (offset < min) minClockOffset = min = offset;
+		
+		latency.record(offset - min);
+	}
+	
+	/**
+	 * Records the time spent notifying the listeners of the specified type
+	 * 
+	 * @param type
+	 *            the index of the listener type (in the constructor arguments)
+	 * @param nanos
+	 */
+	public void recordListenerTime(int type, long nanos)
+	{
+		listenerTimes[type].record(nanos);
+	}
+	
+	/**
+	 * Counts the losses of the specified event queue from now on (the losses of the previous queue
+	 * are kept)
+	 */
+	synchronized void attach(TouchEventRing newRing)
+	{
+		detach();
+		ring = newRing;
+	}
+	
+	synchronized void detach()
+	{
+		TouchEventRing oldRing = ring;
+		if (oldRing == null) return;
+		
+		ring = null;
+		dropped.addAndGet(oldRing.getDroppedCount());
+		coalesced.addAndGet(oldRing.getCoalescedCount());
+	}
+	
+	// management interface
+	
+	@Override
+	public long getEventCount()
+	{
+		return events.get();
+	}
+	
+	@Override
+	public long getFrameCount()
+	{
+		return frames.get();
+	}
+	
+	@Override
+	public synchronized double getEventsPerSecond()
+	{
+		sampleRates();
+		return eventsPerSecond;
+	}
+	
+	@Override
+	public synchronized double getFramesPerSecond()
+	{
+		sampleRates();
+		return framesPerSecond;
+	}
+	
+	/**
+	 * Updates the rates, unless they were sampled less than a second ago
+	 */
+	private void sampleRates()
+	{
+		long now = System.nanoTime();
+		long elapsed = now - lastSampleTime;
+		if (elapsed < 1000000000L) return;
+		
+		long e = events.get(), f = frames.get();
+		eventsPerSecond = (e - lastEventCount) * 1e9 / elapsed;
+		framesPerSecond = (f - lastFrameCount) * 1e9 / elapsed;
+		
+		lastSampleTime = now;
+		lastEventCount = e;
+		lastFrameCount = f;
+	}
+	
+	@Override
+	public synchronized long getDroppedEventCount()
+	{
+		TouchEventRing r = ring;
+		return dropped.get() + (r == null ? 0 : r.getDroppedCount());
+	}
+	
+	@Override
+	public synchronized long getCoalescedEventCount()
+	{
+		TouchEventRing r = ring;
+		return coalesced.get() + (r == null ? 0 : r.getCoalescedCount());
+	}
+	
+	@Override
+	public long getFilteredEventCount()
+	{
+		return filtered.get();
+	}
+	
+	@Override
+	public long getListenerOverrunCount()
+	{
+		return overruns.get();
+	}
+	
+	@Override
+	public long getSlowListenerCount()
+	{
+		return slowListeners.get();
+	}
+	
+	@Override
+	public double getLatencyMean()
+	{
+		return latency.getMean() / 1000.0;
+	}
+	
+	@Override
+	public double getLatencyMedian()
+	{
+		return latency.getPercentile(50) / 1000.0;
+	}
+	
+	@Override
+	public double getLatency99thPercentile()
+	{
+		return latency.getPercentile(99) / 1000.0;
+	}
+	
+	@Override
+	public double getLatencyMax()
+	{
+		return latency.getMax() / 1000.0;
+	}
+	
+	@Override
+	public Map<String, Double> getListenerTimeMean()
+	{
+		Map<String, Double> map = new LinkedHashMap<String, Double>();
+		for (int i = 0; i < listenerTypes.length; i++)
+			map.put(listenerTypes[i], listenerTimes[i].getMean() / 1000.0);
+		return map;
+	}
+	
+	@Override
+	public Map<String, Double> getListenerTime99thPercentile()
+	{
+		Map<String, Double> map = new LinkedHashMap<String, Double>();
+		for (int i = 0; i < listenerTypes.length; i++)
+			map.put(listenerTypes[i], listenerTimes[i].getPercentile(99) / 1000.0);
+		return map;
+	}
+	
+	@Override
+	public Map<String, Double> getListenerTimeTotal()
+	{
+		// extrapolated from the timed frames
+		int interval = samplingInterval;
+		Map<String, Double> map = new LinkedHashMap<String, Double>();
+		for (int i = 0; i < listenerTypes.length; i++)
+			map.put(listenerTypes[i], listenerTimes[i].getMean() * listenerTimes[i].getCount() * interval / 1000.0);
+		return map;
+	}
+	
+	/**
+	 * @return the histogram of the time from the native event to the completion of the listeners
+	 */
+	public LatencyHistogram getLatency()
+	{
+		return latency;
+	}
+	
+	/**
+	 * @param type
+	 *            the index of the listener type (in the constructor arguments)
+	 * @return the histogram of the notification time of the specified listener type
+	 */
+	public LatencyHistogram getListenerTime(int type)
+	{
+		return listenerTimes[type];
+	}
+	
+	@Override
+	public synchronized void reset()
+	{
+		TouchEventRing r = ring;
+		
+		events.set(0);
+		frames.set(0);
+		filtered.set(0);
+		overruns.set(0);
+		// the losses of the current queue cannot be reset, compensate them instead
+		dropped.set(r == null ? 0 : -r.getDroppedCount());
+		coalesced.set(r == null ? 0 : -r.getCoalescedCount());
+		latency.reset();
+		for (LatencyHistogram h : listenerTimes)
+			h.reset();
+		
+		lastSampleTime = System.nanoTime();
+		lastEventCount = lastFrameCount = 0;
+		eventsPerSecond = framesPerSecond = 0.0;
+	}
+}
@@ -0,0 +1,101 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.util.Map;
+
+/**
+ * Management interface of the touch pipeline metrics (see {@link TouchMetrics}). All durations are
+ * given in microseconds, and measured on a sample of the frames.
+ * 
+ * @author adufour
+ */
+public interface TouchMetricsMXBean
+{
+	/**
+	 * @return the number of finger events received
+	 */
+	long getEventCount();
+	
+	/**
+	 * @return the number of frames delivered
+	 */
+	long getFrameCount();
+	
+	/**
+	 * @return the number of events received per second (averaged since the previous call)
+	 */
+	double getEventsPerSecond();
+	
+	/**
+	 * @return the number of frames delivered per second (averaged since the previous call)
+	 */
+	double getFramesPerSecond();
+	
+	/**
+	 * @return the number of events discarded because the event queue was full
+	 */
+	long getDroppedEventCount();
+	
+	/**
+	 * @return the number of motion events coalesced because the event queue was full (or the
+	 *         listener was busy)
+	 */
+	long getCoalescedEventCount();
+	
+	/**
+	 * @return the number of events filtered out (e.g. motion below the noise threshold)
+	 */
+	long getFilteredEventCount();
+	
+	/**
+	 * @return the number of times a listener exceeded its time budget
+	 */
+	long getListenerOverrunCount();
+	
+	/**
+	 * @return the number of listeners that exceeded their time budget at least once (this count
+	 *         is not affected by {@link #reset()}, since each listener is only counted once)
+	 */
+	long getSlowListenerCount();
+	
+	/**
+	 * @return the average time from the native event to the completion of the listeners
+	 */
+	double getLatencyMean();
+	
+	/**
+	 * @return the median time from the native event to the completion of the listeners
+	 */
+	double getLatencyMedian();
+	
+	/**
+	 * @return the 99th percentile of the time from the native event to the completion of the
+	 *         listeners
+	 */
+	double getLatency99thPercentile();
+	
+	/**
+	 * @return the maximum time from the native event to the completion of the listeners
+	 */
+	double getLatencyMax();
+	
+	/**
+	 * @return the average notification time per listener type
+	 */
+	Map<String, Double> getListenerTimeMean();
+	
+	/**
+	 * @return the 99th percentile of the notification time per listener type
+	 */
+	Map<String, Double> getListenerTime99thPercentile();
+	
+	/**
+	 * @return the total time spent notifying each listener type since the last reset (estimated
+	 *         from the sampled frames)
+	 */
+	Map<String, Double> getListenerTimeTotal();
+	
+	/**
+	 * Resets all counters and histograms
+	 */
+	void reset();
+}
@@ -0,0 +1,302 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Flight recorder of the raw native touch events (see
+ * {@link TouchpadObservable#setRecorder(TouchRecorder)}), cheap enough to be left on in
+ * production. Events are appended to a rotating set of memory-mapped segment files in the
+ * {@link TouchTrace} format, each of which can be replayed with {@link TraceReplaySource}. The
+ * disk budget is bounded: once all segments are used, the oldest one is overwritten. Since the
+ * segment following the current one is mapped (and thereby emptied) ahead of time, the history
+ * holds the <code>nbSegments - 1</code> most recent segments (see {@link #getSegments()}).<br/>
+ * <br/>
+ * Recording an event only writes into the current mapping (no allocation, no system call), and
+ * keeps the record count of the segment header up to date, so that the segments remain readable
+ * after a crash. The only system call left is the wake-up of the background thread, once per
+ * segment. The next segment is mapped beforehand by a background thread; if it is not ready
+ * in time, events are dropped rather than delaying the native callback (see
+ * {@link #getDroppedCount()}).
+ * 
+ * @author adufour
+ */
+public class TouchRecorder
+{
+	/**
+	 * Default number of events per segment (about 1.5 minute of two-finger gestures, 2.5 MB)
+	 */
+	public static final int								DEFAULT_SEGMENT_RECORDS	= 50000;
+	
+	/**
+	 * Default number of segments
+	 */
+	public static final int								DEFAULT_SEGMENTS		= 4;
+	
+	private static final int							PAGE_SIZE				= 4096;
+	
+	private final File									directory;
+	
+	private final String								prefix;
+	
+	private final int									segmentRecords;
+	
+	private final int									nbSegments;
+	
+	/** Segment being written (only used by the recording thread) */
+	private MappedByteBuffer							current;
+	
+	/** Number of records in the current segment (only used by the recording thread) */
+	private int											currentCount			= 0;
+	
+	/** Sequence number of the current segment */
+	private volatile long								sequence				= 0;
+	
+	/** Next segment, once mapped by the background thread */
+	private final AtomicReference<MappedByteBuffer>		next					= new AtomicReference<MappedByteBuffer>();
+	
+	/** Filled segment, to be flushed to disk by the background thread */
+	private final AtomicReference<MappedByteBuffer>		filled					= new AtomicReference<MappedByteBuffer>();
+	
+	private final Thread								preparer;
+	
+	private volatile boolean							closed					= false;
+	
+	private volatile long								recorded				= 0;
+	
+	private volatile long								dropped					= 0;
+	
+	/**
+	 * Creates a recorder with the default disk budget ({@value #DEFAULT_SEGMENTS} segments of
+	 * {@value #DEFAULT_SEGMENT_RECORDS} events)
+	 * 
+	 * @param directory
+	 *            the folder receiving the segment files
+	 * @param prefix
+	 *            the prefix of the segment file names
+	 * @throws IOException
+	 *             if the first segment cannot be created
+	 */
+	public TouchRecorder(File directory, String prefix) throws IOException
+	{
+		this(directory, prefix, DEFAULT_SEGMENT_RECORDS, DEFAULT_SEGMENTS);
+	}
+	
+	/**
+	 * @param directory
+	 *            the folder receiving the segment files
+	 * @param prefix
+	 *            the prefix of the segment file names
+	 * @param segmentRecords
+	 *            the number of events per segment
+	 * @param nbSegments
+	 *            the number of segments (the disk budget is therefore about
+	 *            <code>segmentRecords * nbSegments * {@link TouchTrace#RECORD_SIZE}</code> bytes),
+	 *            one of which is always the empty segment mapped ahead of time
+	 * @throws IOException
+	 *             if the first segment cannot be created
+	 */
+	public TouchRecorder(File directory, String prefix, int segmentRecords, int nbSegments) throws IOException
+	{
+		if (segmentRecords < 1) throw new IllegalArgumentException("A segment should hold at least one event");
+		if (nbSegments < 2) throw new IllegalArgumentException("At least 2 segments are needed to rotate");
+		if ((long) segmentRecords * TouchTrace.RECORD_SIZE + TouchTrace.HEADER_SIZE > Integer.MAX_VALUE) throw new IllegalArgumentException("Segments cannot exceed 2 GB");
+		
+		this.directory = directory;
+		this.prefix = prefix;
+		this.segmentRecords = segmentRecords;
+		this.nbSegments = nbSegments;
+		
+		current = map(0);
+		
+		preparer = new Thread("Multi-touch recorder")
+		{
+			@Override
+			public void run()
+			{
+				prepareSegments();
+			}
+		};
+		preparer.setDaemon(true);
+		preparer.start();
+	}
+	
+	/**
+	 * @return the file holding the segment of the specified sequence number
+	 */
+	private File getSegmentFile(long sequenceNumber)
+	{
+		return new File(directory, prefix + "-" + (sequenceNumber % nbSegments) + ".mttrace");
+	}
+	
+	/**
+	 * Creates (or recycles) and maps the segment of the specified sequence number
+	 */
+	private MappedByteBuffer map(long sequenceNumber) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(getSegmentFile(sequenceNumber), "rw");
+		try
+		{
+			long size = TouchTrace.HEADER_SIZE + (long) segmentRecords * TouchTrace.RECORD_SIZE;
+			raf.setLength(size);
+			
+			// the mapping remains valid once the file is closed
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			TouchTrace.writeHeader(buffer, 0, sequenceNumber);
+			
+			// touch every page now, so that recording does not trigger page faults
+			for (int position = TouchTrace.HEADER_SIZE; position < size; position += PAGE_SIZE)
+				buffer.put(position, (byte) 0);
+			
+			return buffer;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Background loop: maps the next segment ahead of time, and flushes the filled ones
+	 */
+	private void prepareSegments()
+	{
+		while (!closed)
+		{
+			MappedByteBuffer toFlush = filled.getAndSet(null);
+			if (toFlush != null) toFlush.force();
+			
+			if (next.get() == null)
+			{
+				try
+				{
+					next.set(map(sequence + 1));
+				}
+				catch (IOException e)
+				{
+					// retry later (events are dropped meanwhile)
+					LockSupport.parkNanos(1000000000L);
+					continue;
+				}
+			}
+			
+			if (filled.get() == null) LockSupport.park(this);
+		}
+	}
+	
+	/**
+	 * Records a native event (the arguments are those of {@link TouchpadObservable#mtcallback}).
+	 * This method must not be called concurrently from several threads
+	 */
+	public void record(int frame, double timestamp, int id, int state, float size, float x, float y, float dx, float dy, float angle, float majorAxis, float minorAxis)
+	{
+		if (closed) return;
+		
+		if (currentCount == segmentRecords && !rotate())
+		{
+			dropped++;
+			return;
+		}
+		
+		TouchTrace.writeRecord(current, TouchTrace.HEADER_SIZE + currentCount * TouchTrace.RECORD_SIZE, frame, timestamp, id, state, size, x, y, dx, dy, angle, majorAxis, minorAxis);
+		
+		// the count is updated after the record, so that readers never see a partial record
+		currentCount++;
+		current.putLong(TouchTrace.RECORD_COUNT_OFFSET, currentCount);
+		recorded++;
+	}
+	
+	/**
+	 * Switches to the next segment (if it is ready)
+	 * 
+	 * @return <code>false</code> if the next segment is not mapped yet
+	 */
+	private boolean rotate()
+	{
+		MappedByteBuffer nextSegment = next.get();
+		if (nextSegment == null) return false;
+		
+		filled.set(current);
+		current = nextSegment;
+		currentCount = 0;
+		
+		// the sequence number is updated before the next segment is requested, otherwise the
+		// background thread may map (and empty) the current segment again
+		sequence++;
+		next.set(null);
+		
+		// prepare the following one
+		LockSupport.unpark(preparer);
+		return true;
+	}
+	
+	/**
+	 * @return the number of events recorded so far
+	 */
+	public long getRecordedCount()
+	{
+		return recorded;
+	}
+	
+	/**
+	 * @return the number of events dropped because the next segment was not ready
+	 */
+	public long getDroppedCount()
+	{
+		return dropped;
+	}
+	
+	/**
+	 * @return the maximum disk space (in bytes) used by this recorder
+	 */
+	public long getDiskBudget()
+	{
+		return nbSegments * (TouchTrace.HEADER_SIZE + (long) segmentRecords * TouchTrace.RECORD_SIZE);
+	}
+	
+	/**
+	 * @return the segment files currently holding events, from the oldest to the most recent one
+	 *         (the last one may still be being written)
+	 */
+	public File[] getSegments()
+	{
+		long last = sequence;
+		long first = Math.max(0, last - nbSegments + 2);
+		
+		File[] segments = new File[(int) (last - first + 1)];
+		for (long s = first; s <= last; s++)
+			segments[(int) (s - first)] = getSegmentFile(s);
+		return segments;
+	}
+	
+	/**
+	 * Stops recording, and flushes the current segment to disk. The recorder should be detached
+	 * from its source beforehand
+	 */
+	public void close()
+	{
+		if (closed) return;
+		
+		closed = true;
+		LockSupport.unpark(preparer);
+		
+		try
+		{
+			preparer.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		current.force();
+		
+		MappedByteBuffer toFlush = filled.getAndSet(null);
+		if (toFlush != null) toFlush.force();
+	}
+}
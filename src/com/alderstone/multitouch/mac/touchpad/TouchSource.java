@@ -0,0 +1,39 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+/**
+ * Source of touch frames. The default source is the Mac touchpad (see {@link TouchpadObservable}
+ * ), but frames may also come from other sources, e.g. a recorded trace (see
+ * {@link TraceReplaySource}).
+ * 
+ * @author adufour
+ */
+public interface TouchSource
+{
+	/**
+	 * Registers a listener that will be notified once per frame with all the fingers of that frame
+	 * 
+	 * @param listener
+	 */
+	void addFrameListener(TouchFrameListener listener);
+	
+	/**
+	 * Registers a listener that will be notified once per frame, declaring the events it is
+	 * interested in. The interest is a hint: the events are filtered with the union of the
+	 * interests of all the listeners of the source, and rejected before any frame is assembled
+	 * only if no listener is interested in them. A listener may therefore receive events it is not
+	 * interested in, and should ignore them. Fingers being pressed or released are always
+	 * delivered. Registering a listener again updates its interest
+	 * 
+	 * @param listener
+	 * @param interest
+	 *            the events the listener is interested in
+	 */
+	void addFrameListener(TouchFrameListener listener, TouchInterest interest);
+	
+	/**
+	 * Removes a listener previously registered with {@link #addFrameListener(TouchFrameListener)}
+	 * 
+	 * @param listener
+	 */
+	void removeFrameListener(TouchFrameListener listener);
+}
@@ -0,0 +1,119 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary format of touch traces, i.e. sequences of raw native touch events. A trace starts with a
+ * header of {@link #HEADER_SIZE} bytes:
+ * <ul>
+ * <li>magic number ({@link #MAGIC}, int)</li>
+ * <li>format version ({@link #VERSION}, int)</li>
+ * <li>number of records (long)</li>
+ * <li>sequence number of the trace, when a recording is split into several files (long)</li>
+ * </ul>
+ * followed by fixed-width records of {@link #RECORD_SIZE} bytes, holding the 12 fields of the
+ * native callback (see {@link TouchpadObservable#mtcallback}) in this order: frame (int),
+ * timestamp (double), id (int), state (int), size, x, y, dx, dy, angle, major axis, minor axis
+ * (float). All values are big-endian. The same header and records are used to stream events over
+ * the network (see {@link NetworkTouchSource}).
+ * 
+ * @author adufour
+ */
+public final class TouchTrace
+{
+	public static final int	MAGIC				= 0x4D545452;	// "MTTR"
+	
+	public static final int	VERSION				= 1;
+	
+	public static final int	HEADER_SIZE			= 24;
+	
+	public static final int	RECORD_SIZE			= 52;
+	
+	static final int		RECORD_COUNT_OFFSET	= 8;
+	
+	static final int		SEQUENCE_OFFSET		= 16;
+	
+	private TouchTrace()
+	{
+	}
+	
+	/**
+	 * Writes a trace header at the beginning of the specified buffer
+	 */
+	static void writeHeader(ByteBuffer buffer, long recordCount, long sequence)
+	{
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putLong(RECORD_COUNT_OFFSET, recordCount);
+		buffer.putLong(SEQUENCE_OFFSET, sequence);
+	}
+	
+	/**
+	 * Checks the header at the beginning of the specified buffer
+	 * 
+	 * @return the number of records of the trace
+	 * @throws IllegalArgumentException
+	 *             if the buffer does not start with a valid trace header
+	 */
+	static long readHeader(ByteBuffer buffer)
+	{
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) throw new IllegalArgumentException("Not a touch trace");
+		if (buffer.getInt(4) != VERSION) throw new IllegalArgumentException("Unsupported touch trace version: " + buffer.getInt(4));
+		
+		return buffer.getLong(RECORD_COUNT_OFFSET);
+	}
+	
+	/**
+	 * Writes a record at the specified (absolute) position of the buffer
+	 */
+	static void writeRecord(ByteBuffer buffer, int position, int frame, double timestamp, int id, int state, float size, float x, float y, float dx, float dy, float angle, float majorAxis, float minorAxis)
+	{
+		buffer.putInt(position, frame);
+		buffer.putDouble(position + 4, timestamp);
+		buffer.putInt(position + 12, id);
+		buffer.putInt(position + 16, state);
+		buffer.putFloat(position + 20, size);
+		buffer.putFloat(position + 24, x);
+		buffer.putFloat(position + 28, y);
+		buffer.putFloat(position + 32, dx);
+		buffer.putFloat(position + 36, dy);
+		buffer.putFloat(position + 40, angle);
+		buffer.putFloat(position + 44, majorAxis);
+		buffer.putFloat(position + 48, minorAxis);
+	}
+	
+	/**
+	 * Sends the record at the specified (absolute) position of the buffer to an assembler
+	 */
+	static void readRecord(ByteBuffer buffer, int position, TouchFrameAssembler assembler)
+	{
+		assembler.offer(buffer.getInt(position), buffer.getDouble(position + 4), buffer.getInt(position + 12), buffer.getInt(position + 16), buffer.getFloat(position + 20),
+				buffer.getFloat(position + 24), buffer.getFloat(position + 28), buffer.getFloat(position + 32), buffer.getFloat(position + 36), buffer.getFloat(position + 40),
+				buffer.getFloat(position + 44), buffer.getFloat(position + 48));
+	}
+	
+	/**
+	 * @return <code>true</code> if the record at the specified (absolute) position passes the
+	 *         specified filter
+	 */
+	static boolean accept(ByteBuffer buffer, int position, TouchEventFilter filter)
+	{
+		return filter.accept(buffer.getInt(position + 12), buffer.getInt(position + 16), buffer.getFloat(position + 24), buffer.getFloat(position + 28));
+	}
+	
+	/**
+	 * @return the finger ID of the record at the specified (absolute) position
+	 */
+	static int readID(ByteBuffer buffer, int position)
+	{
+		return buffer.getInt(position + 12);
+	}
+	
+	/**
+	 * @return the native timestamp of the record at the specified (absolute) position
+	 */
+	static double readTimestamp(ByteBuffer buffer, int position)
+	{
+		return buffer.getDouble(position + 4);
+	}
+}
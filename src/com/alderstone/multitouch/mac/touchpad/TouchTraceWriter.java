@@ -0,0 +1,84 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes raw native touch events into a trace file (see {@link TouchTrace} for the format), which
+ * can be replayed later on with {@link TraceReplaySource}
+ * 
+ * @author adufour
+ */
+public class TouchTraceWriter
+{
+	private static final int	BUFFERED_RECORDS	= 1024;
+	
+	private final FileChannel	channel;
+	
+	private final ByteBuffer	buffer				= ByteBuffer.allocate(BUFFERED_RECORDS * TouchTrace.RECORD_SIZE);
+	
+	private long				recordCount			= 0;
+	
+	public TouchTraceWriter(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+		
+		// header placeholder, filled upon closing
+		ByteBuffer header = ByteBuffer.allocate(TouchTrace.HEADER_SIZE);
+		TouchTrace.writeHeader(header, 0, 0);
+		channel.write(header);
+	}
+	
+	/**
+	 * Appends an event to the trace (the arguments are those of
+	 * {@link TouchpadObservable#mtcallback})
+	 */
+	public void write(int frame, double timestamp, int id, int state, float size, float x, float y, float dx, float dy, float angle, float majorAxis, float minorAxis) throws IOException
+	{
+		if (buffer.remaining() < TouchTrace.RECORD_SIZE) flush();
+		
+		TouchTrace.writeRecord(buffer, buffer.position(), frame, timestamp, id, state, size, x, y, dx, dy, angle, majorAxis, minorAxis);
+		buffer.position(buffer.position() + TouchTrace.RECORD_SIZE);
+		recordCount++;
+	}
+	
+	private void flush() throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+	
+	/**
+	 * @return the number of events written so far
+	 */
+	public long getRecordCount()
+	{
+		return recordCount;
+	}
+	
+	/**
+	 * Writes the pending events and the final header, and closes the trace file
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+			
+			ByteBuffer header = ByteBuffer.allocate(TouchTrace.HEADER_SIZE);
+			TouchTrace.writeHeader(header, recordCount, 0);
+			channel.write(header, 0);
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+}
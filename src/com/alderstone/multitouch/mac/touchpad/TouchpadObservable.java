@@ -20,23 +20,345 @@ package com.alderstone.multitouch.mac.touchpad;
 
 import icy.system.SystemUtil;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class TouchpadObservable extends Observable
+public class TouchpadObservable extends Observable implements TouchSource, TouchFrameListener
 {
+	/**
+	 * Default capacity of the event queue when dispatching asynchronously
+	 */
+	public static final int									DEFAULT_QUEUE_CAPACITY	= 1024;
+	
+	private static final Object								initGuard				= new Object();
+	private static FutureTask<Object>						libraryLoader			= null;
+	private static boolean									registered				= false;
+	private static boolean									hookInstalled			= false;
+	private static final TouchpadObservable					INSTANCE				= new TouchpadObservable(true);
+	
+	private final ListenerRegistry<TouchFrameListener>		frameListeners			= new ListenerRegistry<TouchFrameListener>(TouchFrameListener.class);
+	
+	/**
+	 * Interest of each frame listener (guarded by this)
+	 */
+	private final Map<TouchFrameListener, TouchInterest>	interests				= new IdentityHashMap<TouchFrameListener, TouchInterest>();
+	
+	/**
+	 * Frame listeners relaying the events to the (deprecated) observers (guarded by this)
+	 */
+	private final Map<Observer, TouchFrameListener>			observers				= new IdentityHashMap<Observer, TouchFrameListener>();
+	
+	/**
+	 * Rejects the native events that no frame listener is interested in
+	 */
+	private final TouchEventFilter							filter					= new TouchEventFilter();
+	
+	/**
+	 * Assembler of the frames, used by the native callback thread when dispatching synchronously,
+	 * and by the dispatcher threads otherwise. It is only used while holding its lock, so that its
+	 * state is handed over when the dispatch settings change
+	 */
+	private final TouchFrameAssembler						assembler				= new TouchFrameAssembler(this);
 	
-	private static volatile Object			initGuard;
-	private static volatile boolean			loaded		= false;
-	private static final TouchpadObservable	INSTANCE	= new TouchpadObservable();
+	/**
+	 * Queue of the last dispatcher stopped while switching to synchronous dispatch, drained by the
+	 * native callback thread before its next event
+	 */
+	private final AtomicReference<TouchEventRing>			retiredRing				= new AtomicReference<TouchEventRing>();
+	
+	private final TouchMetrics								metrics					= new TouchMetrics("TouchFrameListener");
+	
+	/**
+	 * Whether this instance registers the native listener (only the running instance does, see
+	 * {@link #getInstance()})
+	 */
+	private final boolean									attached;
+	
+	/**
+	 * Dispatcher thread, or <code>null</code> when dispatching synchronously or when nobody is
+	 * listening
+	 */
+	private volatile TouchDispatcher						dispatcher				= null;
+	
+	/**
+	 * Recorder of the raw native events, or <code>null</code>
+	 */
+	private volatile TouchRecorder							recorder				= null;
+	
+	// dispatch settings (guarded by this)
+	
+	private boolean											asynchronous			= true;
+	private boolean											listening				= false;
+	private int												queueCapacity			= DEFAULT_QUEUE_CAPACITY;
+	private OverflowPolicy									overflowPolicy			= OverflowPolicy.COALESCE_MOTION;
 	
 	// diasable client construction
-	private TouchpadObservable()
+	private TouchpadObservable(boolean attached)
+	{
+		this.attached = attached;
+	}
+	
+	/**
+	 * Creates an instance that is not attached to the native driver, and only receives the events
+	 * injected via {@link #update} (e.g. by the stress tests). Its listeners never register nor
+	 * deregister the native listener of the running instance
+	 * 
+	 * @return a new detached instance
+	 */
+	static TouchpadObservable createDetached()
+	{
+		return new TouchpadObservable(false);
+	}
+	
+	/**
+	 * Registers a listener that will be notified once per hardware frame with all the fingers of
+	 * that frame
+	 * 
+	 * @param listener
+	 */
+	public void addFrameListener(TouchFrameListener listener)
+	{
+		addFrameListener(listener, TouchInterest.ALL);
+	}
+	
+	/**
+	 * Registers a listener that will be notified once per hardware frame, declaring the events it
+	 * is interested in (see {@link TouchInterest}). The native events are filtered with the union
+	 * of the interests of all the frame listeners, hence a listener may also receive events that
+	 * only other listeners are interested in (see
+	 * {@link TouchSource#addFrameListener(TouchFrameListener, TouchInterest)}). Registering a
+	 * listener again updates its interest
+	 * 
+	 * @param listener
+	 * @param interest
+	 */
+	public synchronized void addFrameListener(TouchFrameListener listener, TouchInterest interest)
+	{
+		if (listener == null) throw new NullPointerException("Cannot register a null listener");
+		
+		interests.put(listener, interest);
+		frameListeners.add(listener);
+		updateRegistration();
+	}
+	
+	/**
+	 * Unregisters a listener. This does not wait for the dispatcher thread, hence a frame being
+	 * delivered meanwhile may still reach the listener (which may therefore unregister itself from
+	 * its notification, or from a thread the notification waits for)
+	 * 
+	 * @param listener
+	 */
+	public synchronized void removeFrameListener(TouchFrameListener listener)
+	{
+		interests.remove(listener);
+		if (frameListeners.remove(listener)) updateRegistration();
+	}
+	
+	/**
+	 * @return the union of the specified interests (i.e. what the native events are filtered
+	 *         with)
+	 */
+	static TouchInterest union(Collection<TouchInterest> interests)
+	{
+		TouchInterest union = null;
+		
+		for (TouchInterest interest : interests)
+			union = union == null ? interest : union.union(interest);
+		
+		return union == null ? TouchInterest.ALL : union;
+	}
+	
+	/**
+	 * Listens to the touchpad only while at least one frame listener is registered or the events
+	 * are recorded, and runs the dispatcher thread only while at least one frame listener is
+	 * registered, so that an idle session costs nothing
+	 */
+	private synchronized void updateRegistration()
+	{
+		filter.setInterest(union(interests.values()));
+		
+		if (frameListeners.isEmpty())
+		{
+			listening = false;
+			if (attached)
+			{
+				if (recorder != null) startupNative();
+				else shutdownNative();
+			}
+			
+			// the events still queued are outdated
+			stopDispatcher(false);
+			
+			// the fingers may have moved meanwhile
+			filter.reset();
+		}
+		else
+		{
+			if (!listening)
+			{
+				// the events were lost while nobody was listening
+				listening = true;
+				assembler.requestReset();
+			}
+			
+			if (asynchronous && dispatcher == null) startDispatcher();
+			if (attached) startupNative();
+		}
+	}
+	
+	/**
+	 * Starts a new dispatcher thread (replacing the current one, if any). The queue of the new
+	 * dispatcher delivers the events left in the queue it replaces first
+	 */
+	private synchronized void startDispatcher()
+	{
+		TouchDispatcher oldDispatcher = dispatcher;
+		// the retired queue is left to the native callback thread as well, since it may be about to
+		// dispatch synchronously (both drain it in order, under the lock of the assembler)
+		TouchEventRing previous = oldDispatcher != null ? oldDispatcher.getRing() : retiredRing.get();
+		
+		TouchDispatcher newDispatcher = new TouchDispatcher(new TouchEventRing(queueCapacity, overflowPolicy, previous), assembler);
+		metrics.attach(newDispatcher.getRing());
+		newDispatcher.start();
+		
+		dispatcher = newDispatcher;
+		if (oldDispatcher != null) oldDispatcher.shutdown();
+	}
+	
+	/**
+	 * Stops the dispatcher thread (if any)
+	 * 
+	 * @param handOver
+	 *            <code>true</code> if the events left in its queue should be delivered by the
+	 *            native callback thread (when switching to synchronous dispatch), or
+	 *            <code>false</code> to discard them
+	 */
+	private synchronized void stopDispatcher(boolean handOver)
+	{
+		TouchDispatcher oldDispatcher = dispatcher;
+		
+		if (handOver)
+		{
+			// the queue of the old dispatcher delivers the queue retired before (if any) first.
+			// It is retired before the native callback thread may see the dispatcher gone, so
+			// that it never dispatches an event synchronously ahead of the queued ones
+			if (oldDispatcher != null) retiredRing.set(oldDispatcher.getRing());
+			dispatcher = null;
+		}
+		else
+		{
+			dispatcher = null;
+			TouchEventRing retired = retiredRing.getAndSet(null);
+			if (retired != null) retired.close();
+			if (oldDispatcher != null) oldDispatcher.getRing().close();
+		}
+		
+		if (oldDispatcher != null) oldDispatcher.shutdown();
+		metrics.detach();
+	}
+	
+	/**
+	 * Enables or disables the recycling mode. In recycling mode, the frames and fingers sent to
+	 * the frame listeners are reused from one frame to the next, and are therefore only valid
+	 * during the notification (use {@link TouchFrame#copy()} or {@link Finger#copy()} to keep
+	 * them). This removes all allocations from the event path. The multi-touch providers enable
+	 * this mode on the running instance (see {@link #getInstance()}).
+	 * 
+	 * @param recycling
+	 */
+	public synchronized void setRecycling(boolean recycling)
+	{
+		assembler.setRecycling(recycling);
+	}
+	
+	/**
+	 * @return <code>true</code> if frames and fingers are recycled (see
+	 *         {@link #setRecycling(boolean)})
+	 */
+	public boolean isRecycling()
+	{
+		return assembler.isRecycling();
+	}
+	
+	/**
+	 * Delivers the touch events on a dedicated dispatcher thread (this is the default mode). The
+	 * native callback thread only writes the event into a bounded lock-free queue, hence slow
+	 * listeners cannot back up the native driver.
+	 * 
+	 * @param capacity
+	 *            the maximum number of queued events
+	 * @param policy
+	 *            the policy to apply when the queue is full
+	 */
+	public synchronized void setAsynchronousDispatch(int capacity, OverflowPolicy policy)
+	{
+		if (capacity < 2) throw new IllegalArgumentException("Queue capacity should be at least 2");
+		
+		asynchronous = true;
+		queueCapacity = capacity;
+		overflowPolicy = policy;
+		
+		if (!frameListeners.isEmpty()) startDispatcher();
+	}
+	
+	/**
+	 * Delivers the touch events directly on the native callback thread
+	 */
+	public synchronized void setSynchronousDispatch()
+	{
+		asynchronous = false;
+		stopDispatcher(true);
+	}
+	
+	/**
+	 * @return <code>true</code> if the touch events are delivered on a dedicated dispatcher thread
+	 */
+	public synchronized boolean isAsynchronousDispatch()
 	{
+		return asynchronous;
+	}
+	
+	/**
+	 * @return the metrics of the native event pipeline (also published via JMX as
+	 *         "com.alderstone.multitouch:type=Touchpad")
+	 */
+	public TouchMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Records all raw native events with the specified recorder (or stops recording if
+	 * <code>null</code>). The touchpad is listened to while recording, even if no frame listener
+	 * is registered. The previous recorder (if any) is returned, and should be closed by the
+	 * caller
+	 * 
+	 * @param newRecorder
+	 * @return the previous recorder, or <code>null</code>
+	 */
+	public synchronized TouchRecorder setRecorder(TouchRecorder newRecorder)
+	{
+		TouchRecorder oldRecorder = recorder;
+		recorder = newRecorder;
+		
+		if ((oldRecorder == null) != (newRecorder == null)) updateRegistration();
+		
+		return oldRecorder;
+	}
+	
+	/**
+	 * @return the current recorder, or <code>null</code> if the events are not recorded
+	 */
+	public TouchRecorder getRecorder()
+	{
+		return recorder;
 	}
 	
 	/**
@@ -48,69 +370,132 @@ public class TouchpadObservable extends Observable
 	 */
 	public static TouchpadObservable getInstance() throws UnsupportedOperationException
 	{
-		startupNative();
+		initialize();
+		INSTANCE.metrics.register("com.alderstone.multitouch:type=Touchpad");
 		return INSTANCE;
 	}
 	
-	static
+	/**
+	 * Loads the native library (if not already done). This method is called automatically by
+	 * {@link #getInstance()}, but may be called beforehand (or see {@link #initializeInBackground()})
+	 * to take the loading cost out of the first use
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             if multi-touch support is not available on the client OS
+	 */
+	public static void initialize() throws UnsupportedOperationException
 	{
-		initGuard = new Object();
-		
-		// BEGIN - Changes made by Alexandre Dufour on 19 sept. 2011
-		
-		// Goal: load the native library from a local resource file
-		// Problem: the resource cannot be loaded directly from within a .jar file
-		// Solution: copy the resource into a temporary file and load it instead
+		FutureTask<Object> loader = getLibraryLoader();
 		
-		// System.loadLibrary("GlulogicMT");
-		
-		if (!SystemUtil.isMac())
-			throw new UnsupportedOperationException("Warning: multi-touch is currently available for Mac OS X (Intel 64) only");
+		// load on the calling thread if nobody did it yet
+		loader.run();
 		
 		try
 		{
-			InputStream is = TouchpadObservable.class.getResourceAsStream("libGlulogicMT.jnilib");
-			
-			File libFile = File.createTempFile("libGlulogicMT", ".jnilib");
-			FileOutputStream fos = new FileOutputStream(libFile);
-			
-			int b;
-			while ((b = is.read()) != -1) // TODO optimize by writing more bytes at once
-				fos.write(b);
-			fos.close();
-			
-			// load the temporary file
-			System.load(libFile.getAbsolutePath());
+			loader.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new UnsupportedOperationException("Interrupted while loading the multi-touch library");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof UnsupportedOperationException) throw (UnsupportedOperationException) cause;
+			throw new UnsupportedOperationException("Unable to load the multi-touch library: " + cause.getMessage(), cause);
 		}
-		catch (FileNotFoundException e)
+	}
+	
+	/**
+	 * Starts loading the native library on a background thread, and returns immediately
+	 */
+	public static void initializeInBackground()
+	{
+		Thread thread = new Thread(getLibraryLoader(), "Multi-touch library loader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private static FutureTask<Object> getLibraryLoader()
+	{
+		synchronized (initGuard)
 		{
-			e.printStackTrace();
+			if (libraryLoader == null) libraryLoader = new FutureTask<Object>(new Callable<Object>()
+			{
+				@Override
+				public Object call() throws Exception
+				{
+					if (!SystemUtil.isMac()) throw new UnsupportedOperationException("Warning: multi-touch is currently available for Mac OS X (Intel 64) only");
+					
+					NativeLibraryLoader.load(TouchpadObservable.class, "libGlulogicMT", ".jnilib");
+					return null;
+				}
+			});
+			
+			return libraryLoader;
 		}
-		catch (IOException e)
+	}
+	
+	/**
+	 * @return <code>true</code> if the native library was loaded successfully
+	 */
+	private static boolean isLibraryLoaded()
+	{
+		synchronized (initGuard)
 		{
-			e.printStackTrace();
+			if (libraryLoader == null || !libraryLoader.isDone()) return false;
 		}
 		
-		// END - Changes made by Alexandre Dufour on 19 sept. 2011
+		try
+		{
+			libraryLoader.get();
+			return true;
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
 	}
 	
+	/**
+	 * Attaches the native listener (if not already done)
+	 */
 	private static void startupNative()
 	{
+		// without native library, events can only be injected via update()
+		if (!isLibraryLoaded()) return;
+		
 		synchronized (initGuard)
 		{
-			if (!loaded)
+			if (!registered)
 			{
-				loaded = true;
+				registered = true;
 				registerListener();
-				ShutdownHook shutdownHook = new ShutdownHook();
-				Runtime.getRuntime().addShutdownHook(shutdownHook);
+				
+				if (!hookInstalled)
+				{
+					hookInstalled = true;
+					ShutdownHook shutdownHook = new ShutdownHook();
+					Runtime.getRuntime().addShutdownHook(shutdownHook);
+				}
 			}
 		}
 	}
 	
+	/**
+	 * Detaches the native listener (if attached)
+	 */
 	private static void shutdownNative()
 	{
-		deregisterListener();
+		synchronized (initGuard)
+		{
+			if (registered)
+			{
+				registered = false;
+				deregisterListener();
+			}
+		}
 	}
 	
 	public static void mtcallback(int frame, double timestamp, int id, int state, float size, float x, float y, float dx, float dy, float angle, float majorAxis, float minorAxis)
@@ -133,12 +518,149 @@ public class TouchpadObservable extends Observable
 		}
 	}
 	
-	// Observer interface code
+	// Observer interface code (deprecated, kept for existing clients until the next release)
 	
+	/**
+	 * Registers an observer that will be notified with a copy of each {@link Finger} of each
+	 * frame
+	 * 
+	 * @deprecated use {@link #addFrameListener(TouchFrameListener)} instead
+	 */
+	@Deprecated
+	@Override
+	public synchronized void addObserver(Observer observer)
+	{
+		if (observer == null) throw new NullPointerException("Cannot register a null observer");
+		
+		if (observers.containsKey(observer)) return;
+		
+		TouchFrameListener adapter = new ObserverAdapter(this, observer);
+		observers.put(observer, adapter);
+		addFrameListener(adapter);
+	}
+	
+	/**
+	 * @deprecated use {@link #removeFrameListener(TouchFrameListener)} instead
+	 */
+	@Deprecated
+	@Override
+	public synchronized void deleteObserver(Observer observer)
+	{
+		TouchFrameListener adapter = observers.remove(observer);
+		if (adapter != null) removeFrameListener(adapter);
+	}
+	
+	/**
+	 * @deprecated use {@link #removeFrameListener(TouchFrameListener)} instead
+	 */
+	@Deprecated
+	@Override
+	public synchronized void deleteObservers()
+	{
+		for (TouchFrameListener adapter : observers.values())
+			removeFrameListener(adapter);
+		observers.clear();
+	}
+	
+	/**
+	 * @deprecated observers are relayed by frame listeners
+	 */
+	@Deprecated
+	@Override
+	public synchronized int countObservers()
+	{
+		return observers.size();
+	}
+	
+	/**
+	 * Relays the frames to an observer, one finger at a time (as the native events were notified
+	 * before frame listeners were introduced). The fingers are copied, since observers may keep
+	 * them whereas the frames may be recycled
+	 */
+	private static class ObserverAdapter implements TouchFrameListener
+	{
+		private final Observable	source;
+		
+		private final Observer		observer;
+		
+		ObserverAdapter(Observable source, Observer observer)
+		{
+			this.source = source;
+			this.observer = observer;
+		}
+		
+		public void frameReceived(TouchFrame frame)
+		{
+			for (int i = 0; i < frame.getFingerCount(); i++)
+				observer.update(source, frame.getFinger(i).copy());
+		}
+	}
+	
+	// event dispatch
+	
+	/**
+	 * Handles a new native event. This method is called by the native callback thread, and must
+	 * not be called concurrently from several threads. The raw event is recorded (see
+	 * {@link #setRecorder(TouchRecorder)}) before being filtered
+	 */
 	public void update(int frame, double timestamp, int id, int state, float size, float x, float y, float dx, float dy, float angle, float majorAxis, float minorAxis)
 	{
-		setChanged();
-		notifyObservers(new Finger(frame, timestamp, id, state, size, x, y, dx, dy, angle, majorAxis, minorAxis));
+		metrics.eventsReceived(1);
+		
+		TouchRecorder r = recorder;
+		if (r != null) r.record(frame, timestamp, id, state, size, x, y, dx, dy, angle, majorAxis, minorAxis);
+		
+		// only recording
+		if (frameListeners.isEmpty()) return;
+		
+		// reject what nobody is interested in before it costs anything
+		if (!filter.accept(id, state, x, y))
+		{
+			metrics.eventsFiltered(1);
+			return;
+		}
+		
+		TouchDispatcher d = dispatcher;
+		
+		if (d != null)
+		{
+			d.getRing().offer(frame, timestamp, id, state, size, x, y, dx, dy, angle, majorAxis, minorAxis);
+			return;
+		}
+		
+		synchronized (assembler)
+		{
+			// events queued before switching to synchronous dispatch come first
+			TouchEventRing retired = retiredRing.get();
+			if (retired != null)
+			{
+				retired.drainTo(assembler);
+				retiredRing.compareAndSet(retired, null);
+			}
+			
+			assembler.offer(frame, timestamp, id, state, size, x, y, dx, dy, angle, majorAxis, minorAxis);
+		}
+	}
+	
+	/**
+	 * Dispatches a complete frame to all frame listeners
+	 */
+	public void frameReceived(TouchFrame frame)
+	{
+		if (!metrics.frameStarted())
+		{
+			for (TouchFrameListener l : frameListeners.getListeners())
+				l.frameReceived(frame);
+			return;
+		}
+		
+		long start = System.nanoTime();
+		
+		for (TouchFrameListener l : frameListeners.getListeners())
+			l.frameReceived(frame);
+		
+		metrics.recordListenerTime(0, System.nanoTime() - start);
+		metrics.frameCompleted(frame.getTimestamp());
 	}
 	
 }
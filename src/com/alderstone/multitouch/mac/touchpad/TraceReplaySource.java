@@ -0,0 +1,161 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Touch source replaying a recorded trace (see {@link TouchTrace} for the format). The trace file
+ * is memory-mapped, and its events are sent through the same frame assembly as the native events,
+ * either at their original pace or as fast as possible. This allows running (and measuring) the
+ * gesture pipeline deterministically, without any touchpad attached.
+ * 
+ * @author adufour
+ */
+public class TraceReplaySource implements TouchSource, TouchFrameListener
+{
+	private final ListenerRegistry<TouchFrameListener>		listeners	= new ListenerRegistry<TouchFrameListener>(TouchFrameListener.class);
+	
+	/** Interest of each listener (guarded by itself) */
+	private final Map<TouchFrameListener, TouchInterest>	interests	= new IdentityHashMap<TouchFrameListener, TouchInterest>();
+	
+	private final TouchEventFilter							filter		= new TouchEventFilter();
+	
+	private final TouchFrameAssembler						assembler	= new TouchFrameAssembler(this);
+	
+	private final MappedByteBuffer							buffer;
+	
+	private final int										recordCount;
+	
+	/**
+	 * @param trace
+	 *            the trace file to replay
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 * @throws IllegalArgumentException
+	 *             if the file is not a valid trace
+	 */
+	public TraceReplaySource(File trace) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(trace, "r");
+		try
+		{
+			// the mapping remains valid once the file is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally
+		{
+			raf.close();
+		}
+		
+		long count = TouchTrace.readHeader(buffer);
+		long available = (buffer.limit() - TouchTrace.HEADER_SIZE) / TouchTrace.RECORD_SIZE;
+		
+		// a trace that was not closed properly may not know its length
+		recordCount = (int) (count <= 0 || count > available ? available : count);
+	}
+	
+	public void addFrameListener(TouchFrameListener listener)
+	{
+		addFrameListener(listener, TouchInterest.ALL);
+	}
+	
+	public void addFrameListener(TouchFrameListener listener, TouchInterest interest)
+	{
+		synchronized (interests)
+		{
+			interests.put(listener, interest);
+			listeners.add(listener);
+			filter.setInterest(TouchpadObservable.union(interests.values()));
+		}
+	}
+	
+	public void removeFrameListener(TouchFrameListener listener)
+	{
+		synchronized (interests)
+		{
+			interests.remove(listener);
+			listeners.remove(listener);
+			filter.setInterest(TouchpadObservable.union(interests.values()));
+		}
+	}
+	
+	/**
+	 * Enables or disables the recycling mode (see {@link TouchpadObservable#setRecycling(boolean)})
+	 * 
+	 * @param recycling
+	 */
+	public void setRecycling(boolean recycling)
+	{
+		assembler.setRecycling(recycling);
+	}
+	
+	/**
+	 * @return the number of events in the trace
+	 */
+	public int getEventCount()
+	{
+		return recordCount;
+	}
+	
+	/**
+	 * Replays the whole trace on the calling thread, or until the thread is interrupted. Either
+	 * way, the fingers still touching the pad at that point are then released, so that no finger
+	 * remains pressed for the listeners
+	 * 
+	 * @param realTime
+	 *            <code>true</code> to reproduce the original timing of the events (based on their
+	 *            native timestamps), or <code>false</code> to send them as fast as possible
+	 * @return the replay duration (in nanoseconds)
+	 */
+	public synchronized long replay(boolean realTime)
+	{
+		final long start = System.nanoTime();
+		
+		if (recordCount == 0) return 0;
+		
+		final double t0 = TouchTrace.readTimestamp(buffer, TouchTrace.HEADER_SIZE);
+		
+		// each replay starts from a blank finger state
+		filter.reset();
+		assembler.requestReset();
+		
+		try
+		{
+			for (int i = 0, position = TouchTrace.HEADER_SIZE; i < recordCount; i++, position += TouchTrace.RECORD_SIZE)
+			{
+				if (realTime)
+				{
+					long due = start + (long) ((TouchTrace.readTimestamp(buffer, position) - t0) * 1e9);
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted())
+						LockSupport.parkNanos(wait);
+				}
+				
+				if (Thread.currentThread().isInterrupted()) break;
+				
+				if (TouchTrace.accept(buffer, position, filter)) TouchTrace.readRecord(buffer, position, assembler);
+			}
+		}
+		finally
+		{
+			assembler.releaseAll();
+		}
+		
+		return System.nanoTime() - start;
+	}
+	
+	/**
+	 * Dispatches a complete frame to all frame listeners
+	 */
+	public void frameReceived(TouchFrame frame)
+	{
+		for (TouchFrameListener l : listeners.getListeners())
+			l.frameReceived(frame);
+	}
+}
@@ -0,0 +1,241 @@
+package plugins.adufour.multitouch;
+
+/**
+ * Adaptive low-pass filter smoothing the position of each finger (One-Euro filter). The cut-off
+ * frequency of the filter increases with the finger speed: slow motion is heavily smoothed (which
+ * removes the jitter of a resting finger), while fast motion is barely delayed. The finger speed
+ * is taken from the native velocity when available, and estimated from consecutive positions
+ * otherwise.<br/>
+ * The filter state of each finger slot is stored in primitive arrays, and filtering does not
+ * allocate anything.
+ * 
+ * @author adufour
+ */
+class FingerFilter
+{
+    /** Default minimum cut-off frequency (in Hz), applied to a resting finger */
+    public static final double DEFAULT_MIN_CUTOFF      = 1.0;
+    
+    /** Default increase of the cut-off frequency with the finger speed */
+    public static final double DEFAULT_BETA            = 10.0;
+    
+    /** Default cut-off frequency (in Hz) used to smooth the finger speed */
+    public static final double DEFAULT_DERIVATE_CUTOFF = 1.0;
+    
+    /** Time step (in seconds) used when two samples share the same timestamp */
+    private static final double DEFAULT_TIME_STEP      = 1.0 / 90;
+    
+    private volatile double     minCutoff              = DEFAULT_MIN_CUTOFF;
+    
+    private volatile double     beta                   = DEFAULT_BETA;
+    
+    private volatile double     derivateCutoff         = DEFAULT_DERIVATE_CUTOFF;
+    
+    private final boolean[]     initialized;
+    
+    private final double[]      timestamps;
+    
+    private final float[]       rawX, rawY;
+    
+    private final float[]       x, y, previousX, previousY;
+    
+    private final float[]       speedX, speedY, previousSpeedX, previousSpeedY;
+    
+    /**
+     * @param capacity
+     *            the number of finger slots
+     */
+    FingerFilter(int capacity)
+    {
+        initialized = new boolean[capacity];
+        timestamps = new double[capacity];
+        rawX = new float[capacity];
+        rawY = new float[capacity];
+        x = new float[capacity];
+        y = new float[capacity];
+        previousX = new float[capacity];
+        previousY = new float[capacity];
+        speedX = new float[capacity];
+        speedY = new float[capacity];
+        previousSpeedX = new float[capacity];
+        previousSpeedY = new float[capacity];
+    }
+    
+    /**
+     * Sets the filter parameters
+     * 
+     * @param minCutoff
+     *            the minimum cut-off frequency (in Hz), applied to a resting finger. The lower,
+     *            the smoother
+     * @param beta
+     *            the increase of the cut-off frequency with the finger speed. The higher, the
+     *            more responsive to fast motion
+     * @param derivateCutoff
+     *            the cut-off frequency (in Hz) used to smooth the finger speed
+     */
+    void setParameters(double minCutoff, double beta, double derivateCutoff)
+    {
+        if (minCutoff <= 0 || derivateCutoff <= 0) throw new IllegalArgumentException("Cut-off frequencies should be strictly positive");
+        
+        this.minCutoff = minCutoff;
+        this.beta = beta;
+        this.derivateCutoff = derivateCutoff;
+    }
+    
+    double getMinCutoff()
+    {
+        return minCutoff;
+    }
+    
+    double getBeta()
+    {
+        return beta;
+    }
+    
+    double getDerivateCutoff()
+    {
+        return derivateCutoff;
+    }
+    
+    /**
+     * Forgets the history of the specified slot (e.g. when a new finger touches the pad). The next
+     * sample will be taken as is
+     */
+    void reset(int slot)
+    {
+        initialized[slot] = false;
+    }
+    
+    /**
+     * Filters a new sample of the finger in the specified slot
+     * 
+     * @param slot
+     * @param timestamp
+     *            the sample timestamp (in seconds)
+     * @param sampleX
+     *            the raw position
+     * @param sampleY
+     *            the raw position
+     * @param velocityX
+     *            the native velocity (0 if unknown)
+     * @param velocityY
+     *            the native velocity (0 if unknown)
+     */
+    void filter(int slot, double timestamp, float sampleX, float sampleY, float velocityX, float velocityY)
+    {
+        if (!initialized[slot])
+        {
+            initialized[slot] = true;
+            timestamps[slot] = timestamp;
+            rawX[slot] = x[slot] = previousX[slot] = sampleX;
+            rawY[slot] = y[slot] = previousY[slot] = sampleY;
+            speedX[slot] = speedY[slot] = previousSpeedX[slot] = previousSpeedY[slot] = 0f;
+            return;
+        }
+        
+        double dt = timestamp - timestamps[slot];
+        if (dt <= 0) dt = DEFAULT_TIME_STEP;
+        
+        // speed (smoothed)
+        if (velocityX == 0f && velocityY == 0f)
+        {
+            velocityX = (float) ((sampleX - rawX[slot]) / dt);
+            velocityY = (float) ((sampleY - rawY[slot]) / dt);
+        }
+        
+        previousSpeedX[slot] = speedX[slot];
+        previousSpeedY[slot] = speedY[slot];
+        
+        float a = alpha(derivateCutoff, dt);
+        speedX[slot] += a * (velocityX - speedX[slot]);
+        speedY[slot] += a * (velocityY - speedY[slot]);
+        
+        // position (smoothed with a speed-dependent cut-off)
+        double speed = Math.sqrt(speedX[slot] * speedX[slot] + speedY[slot] * speedY[slot]);
+        a = alpha(minCutoff + beta * speed, dt);
+        
+        previousX[slot] = x[slot];
+        previousY[slot] = y[slot];
+        x[slot] += a * (sampleX - x[slot]);
+        y[slot] += a * (sampleY - y[slot]);
+        
+        timestamps[slot] = timestamp;
+        rawX[slot] = sampleX;
+        rawY[slot] = sampleY;
+    }
+    
+    /**
+     * Smoothing factor of a first-order low-pass filter
+     */
+    private static float alpha(double cutoff, double dt)
+    {
+        double tau = 1.0 / (2 * Math.PI * cutoff);
+        return (float) (1.0 / (1.0 + tau / dt));
+    }
+    
+    /**
+     * @return the filtered position of the finger in the specified slot
+     */
+    float getX(int slot)
+    {
+        return x[slot];
+    }
+    
+    /**
+     * @return the filtered position of the finger in the specified slot
+     */
+    float getY(int slot)
+    {
+        return y[slot];
+    }
+    
+    /**
+     * @return the filtered position of the finger in the specified slot, before the last sample
+     */
+    float getPreviousX(int slot)
+    {
+        return previousX[slot];
+    }
+    
+    /**
+     * @return the filtered position of the finger in the specified slot, before the last sample
+     */
+    float getPreviousY(int slot)
+    {
+        return previousY[slot];
+    }
+    
+    /**
+     * @return the filtered speed (per second) of the finger in the specified slot
+     */
+    float getSpeedX(int slot)
+    {
+        return speedX[slot];
+    }
+    
+    /**
+     * @return the filtered speed (per second) of the finger in the specified slot
+     */
+    float getSpeedY(int slot)
+    {
+        return speedY[slot];
+    }
+    
+    /**
+     * @return the filtered speed (per second) of the finger in the specified slot, before the last
+     *         sample
+     */
+    float getPreviousSpeedX(int slot)
+    {
+        return previousSpeedX[slot];
+    }
+    
+    /**
+     * @return the filtered speed (per second) of the finger in the specified slot, before the last
+     *         sample
+     */
+    float getPreviousSpeedY(int slot)
+    {
+        return previousSpeedY[slot];
+    }
+}
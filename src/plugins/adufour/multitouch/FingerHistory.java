@@ -0,0 +1,310 @@
+package plugins.adufour.multitouch;
+
+import com.alderstone.multitouch.mac.touchpad.Finger;
+
+/**
+ * Recent history of the pressed fingers, shared by all the listeners of a
+ * {@link MultiTouchProvider} (see {@link MultiTouchProvider#getHistory()}). The last frames of
+ * each finger slot are kept in a fixed-size ring of primitive arrays (one array per field), and
+ * all queries are allocation-free: results with several components are written into an array
+ * provided by the caller.<br/>
+ * <br/>
+ * The history of a slot is cleared whenever a new contact starts, and only covers the frames
+ * where the finger is pressed. It is updated by the thread dispatching the frames, and should
+ * therefore only be read from the listeners notified inline (i.e. not from isolated listeners,
+ * see {@link MultiTouchProvider#setIsolatedDispatch(long)}).<br/>
+ * Queries take a window, expressed as a number of frames back from the latest one, which is
+ * clipped to the available history.
+ * 
+ * @author adufour
+ */
+public class FingerHistory
+{
+    /** Default number of frames kept per finger */
+    public static final int DEFAULT_CAPACITY = 32;
+    
+    // indices of the results
+    
+    public static final int X                = 0;
+    
+    public static final int Y                = 1;
+    
+    public static final int MIN_X            = 0;
+    
+    public static final int MIN_Y            = 1;
+    
+    public static final int MAX_X            = 2;
+    
+    public static final int MAX_Y            = 3;
+    
+    private final int       capacity;
+    
+    private final int       mask;
+    
+    /** Index of the next record of each slot (in the ring of that slot) */
+    private final int[]     head;
+    
+    /** Number of records of each slot */
+    private final int[]     count;
+    
+    // records, stored by slot (each slot owns capacity consecutive elements)
+    
+    private final float[]   x, y, dx, dy, size, angle;
+    
+    private final double[]  timestamps;
+    
+    /**
+     * @param nbSlots
+     *            the number of finger slots
+     * @param capacity
+     *            the number of frames to keep per finger (rounded up to a power of 2)
+     */
+    public FingerHistory(int nbSlots, int capacity)
+    {
+        if (capacity < 2) throw new IllegalArgumentException("The history should hold at least 2 frames");
+        
+        int ringSize = Integer.highestOneBit(capacity - 1) << 1;
+        
+        this.capacity = ringSize;
+        this.mask = ringSize - 1;
+        
+        head = new int[nbSlots];
+        count = new int[nbSlots];
+        
+        int length = nbSlots * ringSize;
+        x = new float[length];
+        y = new float[length];
+        dx = new float[length];
+        dy = new float[length];
+        size = new float[length];
+        angle = new float[length];
+        timestamps = new double[length];
+    }
+    
+    /**
+     * @return the maximum number of frames kept per finger
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+    
+    /**
+     * @return the number of frames currently recorded for the specified slot
+     */
+    public int getCount(int slot)
+    {
+        return count[slot];
+    }
+    
+    /**
+     * Forgets the history of the specified slot
+     */
+    void clear(int slot)
+    {
+        count[slot] = 0;
+    }
+    
+    /**
+     * Records the new state of a finger
+     */
+    void record(int slot, Finger finger)
+    {
+        int i = slot * capacity + head[slot];
+        
+        x[i] = finger.getX();
+        y[i] = finger.getY();
+        dx[i] = finger.getXVelocity();
+        dy[i] = finger.getYVelocity();
+        size[i] = finger.getSize();
+        angle[i] = finger.getAngleInRadians();
+        timestamps[i] = finger.getTimestamp();
+        
+        head[slot] = (head[slot] + 1) & mask;
+        if (count[slot] < capacity) count[slot]++;
+    }
+    
+    /**
+     * @param slot
+     * @param age
+     *            the age of the record, in frames (0 for the latest)
+     * @return the index of the record in the arrays
+     */
+    private int indexOf(int slot, int age)
+    {
+        if (age < 0 || age >= count[slot]) throw new ArrayIndexOutOfBoundsException("No record of age " + age + " in slot " + slot);
+        
+        return slot * capacity + ((head[slot] - 1 - age) & mask);
+    }
+    
+    /**
+     * @return the specified window, clipped to the available history
+     */
+    private int clip(int slot, int window)
+    {
+        return Math.min(window, count[slot] - 1);
+    }
+    
+    // raw records
+    
+    public float getX(int slot, int age)
+    {
+        return x[indexOf(slot, age)];
+    }
+    
+    public float getY(int slot, int age)
+    {
+        return y[indexOf(slot, age)];
+    }
+    
+    public float getXVelocity(int slot, int age)
+    {
+        return dx[indexOf(slot, age)];
+    }
+    
+    public float getYVelocity(int slot, int age)
+    {
+        return dy[indexOf(slot, age)];
+    }
+    
+    public float getSize(int slot, int age)
+    {
+        return size[indexOf(slot, age)];
+    }
+    
+    public float getAngleInRadians(int slot, int age)
+    {
+        return angle[indexOf(slot, age)];
+    }
+    
+    public double getTimestamp(int slot, int age)
+    {
+        return timestamps[indexOf(slot, age)];
+    }
+    
+    // windowed queries
+    
+    /**
+     * Computes the average velocity of a finger over the specified window
+     * 
+     * @param slot
+     * @param window
+     *            the number of frames to look back
+     * @param result
+     *            an array receiving the velocity (per second) at indices {@link #X} and {@link #Y}
+     * @return <code>false</code> if the history is too short (the result is then left untouched)
+     */
+    public boolean getVelocity(int slot, int window, float[] result)
+    {
+        window = clip(slot, window);
+        if (window < 1) return false;
+        
+        return velocity(slot, 0, window, result);
+    }
+    
+    /**
+     * Average velocity between two records (the most recent first)
+     */
+    private boolean velocity(int slot, int from, int to, float[] result)
+    {
+        int i = indexOf(slot, from), j = indexOf(slot, to);
+        
+        double dt = timestamps[i] - timestamps[j];
+        if (dt <= 0) return false;
+        
+        result[X] = (float) ((x[i] - x[j]) / dt);
+        result[Y] = (float) ((y[i] - y[j]) / dt);
+        return true;
+    }
+    
+    /**
+     * Computes the average acceleration of a finger over the specified window, from the velocities
+     * over each half of the window
+     * 
+     * @param slot
+     * @param window
+     *            the number of frames to look back (at least 2)
+     * @param result
+     *            an array receiving the acceleration (per second squared) at indices {@link #X}
+     *            and {@link #Y}
+     * @return <code>false</code> if the history is too short (the result is then left untouched)
+     */
+    public boolean getAcceleration(int slot, int window, float[] result)
+    {
+        window = clip(slot, window);
+        if (window < 2) return false;
+        
+        int middle = window / 2;
+        
+        int i = indexOf(slot, 0), j = indexOf(slot, middle), k = indexOf(slot, window);
+        
+        double dt1 = timestamps[i] - timestamps[j];
+        double dt2 = timestamps[j] - timestamps[k];
+        if (dt1 <= 0 || dt2 <= 0) return false;
+        
+        // velocities at the middle of each half
+        double vx1 = (x[i] - x[j]) / dt1, vy1 = (y[i] - y[j]) / dt1;
+        double vx2 = (x[j] - x[k]) / dt2, vy2 = (y[j] - y[k]) / dt2;
+        double dt = (dt1 + dt2) / 2;
+        
+        result[X] = (float) ((vx1 - vx2) / dt);
+        result[Y] = (float) ((vy1 - vy2) / dt);
+        return true;
+    }
+    
+    /**
+     * @param slot
+     * @param window
+     *            the number of frames to look back
+     * @return the distance travelled by a finger over the specified window
+     */
+    public float getPathLength(int slot, int window)
+    {
+        window = clip(slot, window);
+        
+        float length = 0f;
+        
+        for (int age = 0; age < window; age++)
+        {
+            int i = indexOf(slot, age), j = indexOf(slot, age + 1);
+            float ddx = x[i] - x[j], ddy = y[i] - y[j];
+            length += (float) Math.sqrt(ddx * ddx + ddy * ddy);
+        }
+        
+        return length;
+    }
+    
+    /**
+     * Computes the bounding box of the positions of a finger over the specified window
+     * 
+     * @param slot
+     * @param window
+     *            the number of frames to look back
+     * @param result
+     *            an array receiving the box at indices {@link #MIN_X}, {@link #MIN_Y},
+     *            {@link #MAX_X} and {@link #MAX_Y}
+     * @return <code>false</code> if the finger has no history (the result is then left untouched)
+     */
+    public boolean getBoundingBox(int slot, int window, float[] result)
+    {
+        window = clip(slot, window);
+        if (window < 0) return false;
+        
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        
+        for (int age = 0; age <= window; age++)
+        {
+            int i = indexOf(slot, age);
+            if (x[i] < minX) minX = x[i];
+            if (x[i] > maxX) maxX = x[i];
+            if (y[i] < minY) minY = y[i];
+            if (y[i] > maxY) maxY = y[i];
+        }
+        
+        result[MIN_X] = minX;
+        result[MIN_Y] = minY;
+        result[MAX_X] = maxX;
+        result[MAX_Y] = maxY;
+        return true;
+    }
+}
@@ -5,7 +5,8 @@ import com.alderstone.multitouch.mac.touchpad.Finger;
 public interface FingerMotionListener
 {
     /**
-     * Fired when a finger is moved on the pad
+     * Fired when a finger is moved on the pad. The notified finger may be recycled after the
+     * notification, use {@link Finger#copy()} to keep it
      * 
      * @param multiTouchProvider
      * @param f
@@ -0,0 +1,179 @@
+package plugins.adufour.multitouch;
+
+import java.util.Arrays;
+
+/**
+ * Map from the (device, finger ID) pairs to a fixed range of finger slots, where the per-finger
+ * data (states, filters, history...) is stored. The map uses open addressing with linear probing
+ * over primitive arrays (deletions shift the following entries back, hence no tombstones), so
+ * that lookups and updates take constant time and never allocate. Only used by the thread
+ * dispatching the frames.
+ * 
+ * @author adufour
+ */
+class FingerSlotMap
+{
+    private static final long EMPTY = Long.MIN_VALUE;
+    
+    /** Keys of the hash table (EMPTY for free entries) */
+    private final long[]      keys;
+    
+    /** Slots of the hash table */
+    private final int[]       values;
+    
+    private final int         mask;
+    
+    /** Key of each slot, or EMPTY if the slot is free */
+    private final long[]      slotKeys;
+    
+    /** Free slots (stack) */
+    private final int[]       freeSlots;
+    
+    private int               freeCount;
+    
+    /**
+     * @param nbSlots
+     *            the number of slots (i.e. the maximum number of fingers tracked simultaneously)
+     */
+    FingerSlotMap(int nbSlots)
+    {
+        // keep the load factor under 1/2
+        int size = Integer.highestOneBit(nbSlots * 2 - 1) << 1;
+        
+        keys = new long[size];
+        values = new int[size];
+        mask = size - 1;
+        
+        slotKeys = new long[nbSlots];
+        freeSlots = new int[nbSlots];
+        
+        clear();
+    }
+    
+    private static long key(int device, int id)
+    {
+        return ((long) device << 32) | (id & 0xFFFFFFFFL);
+    }
+    
+    private int indexOf(long key)
+    {
+        // mix the bits (the IDs are small consecutive integers)
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+    
+    /**
+     * @return the number of slots
+     */
+    int getCapacity()
+    {
+        return slotKeys.length;
+    }
+    
+    /**
+     * @return the slot of the specified finger, or -1 if it has none
+     */
+    int get(int device, int id)
+    {
+        long key = key(device, id);
+        
+        for (int i = indexOf(key);; i = (i + 1) & mask)
+        {
+            if (keys[i] == key) return values[i];
+            if (keys[i] == EMPTY) return -1;
+        }
+    }
+    
+    /**
+     * Assigns a free slot to the specified finger (which should not have one)
+     * 
+     * @return the new slot of the finger, or -1 if all slots are used
+     */
+    int put(int device, int id)
+    {
+        if (freeCount == 0) return -1;
+        
+        long key = key(device, id);
+        int slot = freeSlots[--freeCount];
+        
+        int i = indexOf(key);
+        while (keys[i] != EMPTY)
+            i = (i + 1) & mask;
+        
+        keys[i] = key;
+        values[i] = slot;
+        slotKeys[slot] = key;
+        
+        return slot;
+    }
+    
+    /**
+     * Frees the specified slot
+     */
+    void remove(int slot)
+    {
+        long key = slotKeys[slot];
+        if (key == EMPTY) return;
+        
+        slotKeys[slot] = EMPTY;
+        freeSlots[freeCount++] = slot;
+        
+        int i = indexOf(key);
+        while (keys[i] != key)
+            i = (i + 1) & mask;
+        
+        // shift back the following entries of the cluster
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask)
+        {
+            int home = indexOf(keys[j]);
+            
+            // move the entry if its home is not within (i, j]
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j))
+            {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        
+        keys[i] = EMPTY;
+    }
+    
+    /**
+     * @return <code>true</code> if the specified slot is assigned to a finger
+     */
+    boolean isUsed(int slot)
+    {
+        return slotKeys[slot] != EMPTY;
+    }
+    
+    /**
+     * @return the device of the finger using the specified slot
+     */
+    int getDevice(int slot)
+    {
+        return (int) (slotKeys[slot] >> 32);
+    }
+    
+    /**
+     * @return the ID of the finger using the specified slot
+     */
+    int getID(int slot)
+    {
+        return (int) slotKeys[slot];
+    }
+    
+    /**
+     * Frees all slots
+     */
+    void clear()
+    {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(slotKeys, EMPTY);
+        
+        // slots are handed out in increasing order
+        freeCount = slotKeys.length;
+        for (int i = 0; i < freeCount; i++)
+            freeSlots[i] = freeCount - 1 - i;
+    }
+}
@@ -3,7 +3,9 @@ package plugins.adufour.multitouch;
 import com.alderstone.multitouch.mac.touchpad.Finger;
 
 /**
- * Interface used to received finger events
+ * Interface used to received finger events.<br/>
+ * Note: the notified finger may be recycled after the notification, use {@link Finger#copy()} to
+ * keep it
  * @author adufour
  *
  */
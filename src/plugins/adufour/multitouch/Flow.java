@@ -0,0 +1,115 @@
+package plugins.adufour.multitouch;
+
+/**
+ * Interfaces of demand-driven (reactive) streams, as defined by the Reactive Streams
+ * specification. They mirror <code>java.util.concurrent.Flow</code> member for member (which is
+ * not available before Java 9), so that publishers and subscribers written against them only need
+ * an import change to use the JDK ones.
+ * 
+ * @see TouchFramePublisher
+ * @author adufour
+ */
+public final class Flow
+{
+    private static final int DEFAULT_BUFFER_SIZE = 256;
+    
+    private Flow()
+    {
+    }
+    
+    /**
+     * Producer of items received by subscribers. Each subscriber receives items in the same order
+     * (via {@link Subscriber#onNext(Object)}), as long as it requested them
+     * 
+     * @param <T>
+     *            the published item type
+     */
+    public static interface Publisher<T>
+    {
+        /**
+         * Adds the specified subscriber (if possible). The subscriber is first notified via
+         * {@link Subscriber#onSubscribe(Subscription)}, then receives items on demand. If the
+         * subscription fails, {@link Subscriber#onError(Throwable)} is called instead
+         * 
+         * @param subscriber
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+    
+    /**
+     * Receiver of items. The methods of a subscriber are invoked in sequence for each
+     * subscription (never concurrently)
+     * 
+     * @param <T>
+     *            the subscribed item type
+     */
+    public static interface Subscriber<T>
+    {
+        /**
+         * Called before any other method for a new subscription. No item is received until
+         * {@link Subscription#request(long)} is called
+         * 
+         * @param subscription
+         */
+        void onSubscribe(Subscription subscription);
+        
+        /**
+         * Called with the next item of the subscription
+         * 
+         * @param item
+         */
+        void onNext(T item);
+        
+        /**
+         * Called upon an unrecoverable error, after which no other method is called
+         * 
+         * @param throwable
+         */
+        void onError(Throwable throwable);
+        
+        /**
+         * Called once no more items will be received (unless already terminated by an error)
+         */
+        void onComplete();
+    }
+    
+    /**
+     * Link between a publisher and one of its subscribers
+     */
+    public static interface Subscription
+    {
+        /**
+         * Adds the specified number of items to the unfulfilled demand of this subscription
+         * 
+         * @param n
+         *            the number of additional items (if not positive, the subscriber receives an
+         *            {@link IllegalArgumentException} via {@link Subscriber#onError(Throwable)})
+         */
+        void request(long n);
+        
+        /**
+         * Stops (eventually) the items of this subscription
+         */
+        void cancel();
+    }
+    
+    /**
+     * Component acting both as a subscriber and a publisher
+     * 
+     * @param <T>
+     *            the subscribed item type
+     * @param <R>
+     *            the published item type
+     */
+    public static interface Processor<T, R> extends Subscriber<T>, Publisher<R>
+    {
+    }
+    
+    /**
+     * @return the default buffer size of publishers and subscribers
+     */
+    public static int defaultBufferSize()
+    {
+        return DEFAULT_BUFFER_SIZE;
+    }
+}
@@ -0,0 +1,670 @@
+package plugins.adufour.multitouch;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.alderstone.multitouch.mac.touchpad.Finger;
+import com.alderstone.multitouch.mac.touchpad.FingerState;
+import com.alderstone.multitouch.mac.touchpad.ListenerRegistry;
+import com.alderstone.multitouch.mac.touchpad.TouchFrame;
+import com.alderstone.multitouch.mac.touchpad.TouchFrameListener;
+import com.alderstone.multitouch.mac.touchpad.TouchInterest;
+import com.alderstone.multitouch.mac.touchpad.TouchSource;
+
+/**
+ * Finger tracking and gesture analysis of a touch source, shared by all the
+ * {@link MultiTouchProvider}s listening to that source: finger states, filtering, history and
+ * two-finger gestures are computed once per frame, whatever the number of providers, which then
+ * only forward the results to their own listeners. Only the providers with their own smoothing or
+ * prediction settings (see {@link MultiTouchProvider#setSmoothing(double, double, double)} and
+ * {@link MultiTouchProvider#setPredictionHorizon(double)}) get their motion and gestures computed
+ * apart, from their own filter and predictor. Fingers are tracked by device and ID (see
+ * {@link TouchFrame#getDevice()}), and gestures are analyzed per device, so that several pads can
+ * be used at once.<br/>
+ * There is a single engine per source (see {@link #acquire(TouchSource)}), which listens to the
+ * source only while at least one provider is subscribed.
+ * 
+ * @author adufour
+ */
+class GestureEngine implements TouchFrameListener
+{
+    /** Shared engines, by source (guarded by itself) */
+    private static final Map<TouchSource, GestureEngine> engines             = new IdentityHashMap<TouchSource, GestureEngine>();
+    
+    private final TouchSource                            source;
+    
+    /** Number of providers using this engine (guarded by engines) */
+    private int                                          references          = 0;
+    
+    private final ListenerRegistry<MultiTouchProvider>   providers           = new ListenerRegistry<MultiTouchProvider>(MultiTouchProvider.class);
+    
+    /** Whether this engine is currently listening to its source (guarded by this) */
+    private boolean                                      subscribed          = false;
+    
+    /**
+     * Slots of the tracked fingers, by device and finger ID (only used by the thread dispatching
+     * the frames)
+     */
+    private final FingerSlotMap                          slots               = new FingerSlotMap(MultiTouchProvider.MAX_FINGER_BLOBS);
+    
+    private final Finger[]                               currentFingersState = new Finger[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    private final Finger[]                               oldFingersState     = new Finger[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    /**
+     * Smoothed finger positions, used to compute motion and gestures (with the default smoothing)
+     */
+    private final FingerFilter                           filter              = new FingerFilter(MultiTouchProvider.MAX_FINGER_BLOBS);
+    
+    /**
+     * Recent frames of the pressed fingers
+     */
+    private final FingerHistory                          history             = new FingerHistory(MultiTouchProvider.MAX_FINGER_BLOBS, FingerHistory.DEFAULT_CAPACITY);
+    
+    /**
+     * Positions of the default filter, as seen by the providers that do not predict positions
+     * (never extrapolated)
+     */
+    private final MotionPredictor                        predictor           = new MotionPredictor();
+    
+    /**
+     * Whether some provider has its own smoothing or prediction in the current frame (only used by
+     * the thread dispatching the frames)
+     */
+    private boolean                                      ownTracking         = false;
+    
+    /**
+     * Gesture parameters computed by the {@link TwoFingersKernel} (only used by the thread
+     * dispatching the frames)
+     */
+    private final float[]                                gesture             = new float[TwoFingersKernel.RESULT_SIZE];
+    
+    /**
+     * Statistics computed by the {@link MultiFingersKernel} (only used by the thread dispatching
+     * the frames)
+     */
+    private final float[]                                multiGesture        = new float[MultiFingersKernel.RESULT_SIZE];
+    
+    // positions handed to the MultiFingersKernel (only used by the thread dispatching the frames)
+    
+    private final float[]                                x                   = new float[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    private final float[]                                y                   = new float[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    private final float[]                                xOld                = new float[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    private final float[]                                yOld                = new float[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    /**
+     * Compact index of the pressed fingers: the slots of the pressed fingers are stored in the
+     * first {@link #activeCount} elements (in no particular order)
+     */
+    private final int[]                                  activeSlots         = new int[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    /** Position of each slot in {@link #activeSlots}, or -1 if the finger is not pressed */
+    private final int[]                                  activePositions     = new int[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    /** Number of pressed fingers (only written by the thread dispatching the frames) */
+    private volatile int                                 activeCount         = 0;
+    
+    /**
+     * Slots of the pressed fingers of the device being analyzed (only used by the thread
+     * dispatching the frames)
+     */
+    private final int[]                                  deviceSlots         = new int[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    /**
+     * Flags of the last gesture detected since the number of pressed fingers changed, and number
+     * of fingers involved (only used by the thread dispatching the frames)
+     */
+    private int                                          gestures            = 0;
+    
+    private int                                          gestureFingers      = 0;
+    
+    /** Snapshots of the fingers and gesture, published at the end of each frame */
+    private final SnapshotBuffer                         snapshots           = new SnapshotBuffer(MultiTouchProvider.MAX_FINGER_BLOBS);
+    
+    /**
+     * Number of frames received, and number of the last frame that updated each slot (only used by
+     * the thread dispatching the frames). Frame numbers cannot be used instead, since a frame may
+     * be delivered in several parts
+     */
+    private int                                          sequence            = 0;
+    
+    private final int[]                                  updates             = new int[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    /**
+     * Number of events filtered out in the current frame (only used by the thread dispatching the
+     * frames)
+     */
+    private int                                          filtered            = 0;
+    
+    /**
+     * Set upon subscription, so that the dispatching thread forgets the finger states recorded
+     * before the previous unsubscription
+     */
+    private volatile boolean                             resetPending        = false;
+    
+    private GestureEngine(TouchSource source)
+    {
+        this.source = source;
+        Arrays.fill(activePositions, -1);
+    }
+    
+    /**
+     * Gets the engine of the specified source (created if needed). Each call should be balanced by
+     * a call to {@link #release()}
+     * 
+     * @param source
+     *            a touch source, or <code>null</code> to get a new (detached) engine
+     * @return
+     */
+    static GestureEngine acquire(TouchSource source)
+    {
+        if (source == null) return new GestureEngine(null);
+        
+        synchronized (engines)
+        {
+            GestureEngine engine = engines.get(source);
+            
+            if (engine == null)
+            {
+                engine = new GestureEngine(source);
+                engines.put(source, engine);
+            }
+            
+            engine.references++;
+            return engine;
+        }
+    }
+    
+    /**
+     * Releases this engine, which is forgotten once no provider uses it anymore
+     */
+    void release()
+    {
+        if (source == null) return;
+        
+        synchronized (engines)
+        {
+            if (--references == 0) engines.remove(source);
+        }
+    }
+    
+    /**
+     * Starts notifying the specified provider
+     */
+    void subscribe(MultiTouchProvider provider)
+    {
+        if (providers.add(provider)) updateSubscription();
+    }
+    
+    /**
+     * Stops notifying the specified provider
+     */
+    void unsubscribe(MultiTouchProvider provider)
+    {
+        if (providers.remove(provider)) updateSubscription();
+    }
+    
+    /**
+     * Listens to the source only while at least one provider is subscribed, with the union of the
+     * interests of the subscribed providers
+     */
+    synchronized void updateSubscription()
+    {
+        if (source == null) return;
+        
+        if (!providers.isEmpty())
+        {
+            if (!subscribed) resetPending = true;
+            subscribed = true;
+            
+            // registering again updates the interest
+            source.addFrameListener(this, getInterest());
+        }
+        else if (subscribed)
+        {
+            subscribed = false;
+            source.removeFrameListener(this);
+        }
+    }
+    
+    /**
+     * @return the union of the interests of the subscribed providers
+     */
+    private TouchInterest getInterest()
+    {
+        TouchInterest union = null;
+        
+        for (MultiTouchProvider provider : providers.getListeners())
+            union = union == null ? provider.getInterest() : union.union(provider.getInterest());
+        
+        return union == null ? TouchInterest.ALL : union;
+    }
+    
+    FingerHistory getHistory()
+    {
+        return history;
+    }
+    
+    /**
+     * @see MultiTouchProvider#getSlot(int, Finger)
+     */
+    int getSlot(int device, Finger finger)
+    {
+        return slots.get(device, finger.getID());
+    }
+    
+    /**
+     * @see MultiTouchProvider#getCount(FingerState)
+     */
+    int getCount(FingerState state)
+    {
+        if (state == FingerState.PRESSED) return activeCount;
+        
+        return snapshots.getCount(state);
+    }
+    
+    /**
+     * @see MultiTouchProvider#getSnapshot(TouchSnapshot)
+     */
+    TouchSnapshot getSnapshot(TouchSnapshot snapshot)
+    {
+        return snapshots.readInto(snapshot);
+    }
+    
+    @Override
+    public void frameReceived(TouchFrame frame)
+    {
+        MultiTouchProvider[] targets = providers.getListeners();
+        
+        if (targets.length == 0) return;
+        
+        if (resetPending)
+        {
+            // the finger states are outdated (their records are kept, and reused by the next
+            // fingers)
+            resetPending = false;
+            slots.clear();
+            Arrays.fill(activePositions, -1);
+            activeCount = 0;
+            gestures = 0;
+            gestureFingers = 0;
+        }
+        
+        boolean motion = false, twoFingers = false, multiFingers = false;
+        ownTracking = false;
+        
+        for (MultiTouchProvider provider : targets)
+        {
+            provider.frameStarted(frame);
+            ownTracking |= provider.beginTracking(filter);
+            motion |= provider.hasMotionListeners();
+            twoFingers |= provider.hasTwoFingersListeners();
+            multiFingers |= provider.hasMultiFingersListeners();
+        }
+        
+        predictor.beginFrame(filter);
+        filtered = 0;
+        sequence++;
+        
+        boolean moved = false;
+        
+        for (int i = 0; i < frame.getFingerCount(); i++)
+            moved |= update(targets, frame.getDevice(), frame.getFinger(i), motion);
+        
+        // multi-touch gestures are analyzed once per frame, after all fingers have been updated,
+        // and only among the fingers of the device that sent the frame
+        if (moved && (twoFingers || multiFingers))
+        {
+            int count = 0;
+            for (int i = 0; i < activeCount; i++)
+                if (slots.getDevice(activeSlots[i]) == frame.getDevice()) deviceSlots[count++] = activeSlots[i];
+            
+            if (count == 2 && twoFingers) processTwoFingersEvent(targets);
+            else if (count > 2 && multiFingers) processMultiFingersEvent(targets, count);
+        }
+        
+        publishSnapshot(frame);
+        
+        for (MultiTouchProvider provider : targets)
+            provider.frameCompleted(frame, filtered);
+    }
+    
+    /**
+     * Publishes the state of the tracked fingers (see {@link TouchSnapshot})
+     */
+    private void publishSnapshot(TouchFrame frame)
+    {
+        snapshots.beginWrite(frame.getFrame(), frame.getTimestamp());
+        
+        for (int slot = 0; slot < slots.getCapacity(); slot++)
+            if (slots.isUsed(slot)) snapshots.writeFinger(slots.getDevice(slot), currentFingersState[slot]);
+        
+        snapshots.endWrite(gestures, gestureFingers);
+    }
+    
+    /**
+     * Updates the state of a single finger and notifies the providers
+     * 
+     * @param targets
+     *            the providers to notify
+     * @param device
+     *            the device of the finger
+     * @param newFingerState
+     * @param motion
+     *            whether finger motion should be notified
+     * @return <code>true</code> if the finger is pressed, and should be considered for
+     *         multi-touch gestures
+     */
+    private boolean update(MultiTouchProvider[] targets, int device, Finger newFingerState, boolean motion)
+    {
+        int slot = slots.get(device, newFingerState.getID());
+        
+        // a finger that is not tracked yet was released before this frame
+        FingerState oldState = FingerState.RELEASED;
+        
+        if (slot == -1)
+        {
+            // a released finger does not need a slot
+            if (newFingerState.getState() == FingerState.RELEASED) return false;
+            
+            slot = slots.put(device, newFingerState.getID());
+            
+            if (slot == -1 && evict()) slot = slots.put(device, newFingerState.getID());
+            
+            if (slot == -1)
+            {
+                // too many pressed fingers
+                filtered++;
+                return false;
+            }
+            
+            if (currentFingersState[slot] == null)
+            {
+                // first time this slot is used: allocate its records once and for all
+                currentFingersState[slot] = newFingerState.copy();
+                oldFingersState[slot] = newFingerState.copy();
+            }
+            
+            resetFilters(targets, slot);
+            history.clear(slot);
+        }
+        else
+        {
+            oldState = currentFingersState[slot].getState();
+        }
+        
+        boolean pressed = false;
+        
+        if (newFingerState.getState() == FingerState.PRESSED)
+        {
+            // a new contact should not inherit the motion of the previous one
+            if (oldState != FingerState.PRESSED)
+            {
+                resetFilters(targets, slot);
+                history.clear(slot);
+                activate(slot);
+            }
+            
+            history.record(slot, newFingerState);
+            
+            filter(targets, slot, newFingerState);
+            
+            processFingerEvent(targets, slot, oldState, newFingerState, motion);
+            pressed = true;
+        }
+        else
+        {
+            deactivate(slot);
+            
+            if (newFingerState.getState() == FingerState.RELEASED || newFingerState.getState() == FingerState.HOVER)
+            {
+                if (newFingerState.getState() != oldState) for (MultiTouchProvider provider : targets)
+                    provider.fingerStateChanged(newFingerState);
+            }
+        }
+        
+        // recycle the oldest record to store the new state
+        Finger record = oldFingersState[slot];
+        Finger previous = currentFingersState[slot];
+        record.copyFrom(newFingerState);
+        oldFingersState[slot] = previous;
+        currentFingersState[slot] = record;
+        updates[slot] = sequence;
+        
+        // the finger is gone: its slot can be reused by another one
+        if (newFingerState.getState() == FingerState.RELEASED) slots.remove(slot);
+        
+        return pressed;
+    }
+    
+    /**
+     * Frees the slot of the least recently updated finger that is not pressed (e.g. a finger that
+     * left the pad without being released)
+     * 
+     * @return <code>true</code> if a slot was freed, <code>false</code> if all fingers are pressed
+     */
+    private boolean evict()
+    {
+        int oldest = -1;
+        
+        for (int slot = 0; slot < slots.getCapacity(); slot++)
+        {
+            if (activePositions[slot] != -1) continue;
+            
+            if (oldest == -1 || currentFingersState[slot].getTimestamp() < currentFingersState[oldest].getTimestamp()) oldest = slot;
+        }
+        
+        if (oldest == -1) return false;
+        
+        slots.remove(oldest);
+        return true;
+    }
+    
+    /**
+     * Adds the specified slot to the index of the pressed fingers (if not already there)
+     */
+    private void activate(int slot)
+    {
+        if (activePositions[slot] != -1) return;
+        
+        activePositions[slot] = activeCount;
+        activeSlots[activeCount] = slot;
+        activeCount++;
+        gestures = gestureFingers = 0;
+    }
+    
+    /**
+     * Removes the specified slot from the index of the pressed fingers (if there)
+     */
+    private void deactivate(int slot)
+    {
+        int position = activePositions[slot];
+        if (position == -1) return;
+        
+        // move the last active slot into the hole
+        int last = activeSlots[activeCount - 1];
+        activeSlots[position] = last;
+        activePositions[last] = position;
+        activePositions[slot] = -1;
+        activeCount--;
+        gestures = gestureFingers = 0;
+    }
+    
+    /**
+     * Resets the default filter and the own filters of the providers for the specified slot
+     */
+    private void resetFilters(MultiTouchProvider[] targets, int slot)
+    {
+        filter.reset(slot);
+        
+        if (ownTracking) for (MultiTouchProvider provider : targets)
+        {
+            FingerFilter own = provider.getFrameFilter();
+            if (own != null) own.reset(slot);
+        }
+    }
+    
+    /**
+     * Filters the new position of a finger with the default filter and the own filters of the
+     * providers
+     */
+    private void filter(MultiTouchProvider[] targets, int slot, Finger finger)
+    {
+        filter.filter(slot, finger.getTimestamp(), finger.getX(), finger.getY(), finger.getXVelocity(), finger.getYVelocity());
+        
+        if (ownTracking) for (MultiTouchProvider provider : targets)
+        {
+            FingerFilter own = provider.getFrameFilter();
+            if (own != null) own.filter(slot, finger.getTimestamp(), finger.getX(), finger.getY(), finger.getXVelocity(), finger.getYVelocity());
+        }
+    }
+    
+    private void processFingerEvent(MultiTouchProvider[] targets, int id, FingerState oldState, Finger newFingerState, boolean motion)
+    {
+        if (newFingerState.getState() != oldState) for (MultiTouchProvider provider : targets)
+            provider.fingerStateChanged(newFingerState);
+        
+        if (!motion) return;
+        
+        float dX = predictor.getX(id) - predictor.getPreviousX(id);
+        float dY = predictor.getY(id) - predictor.getPreviousY(id);
+        
+        boolean moved = isMotion(dX, dY);
+        if (!moved) filtered++;
+        
+        for (MultiTouchProvider provider : targets)
+        {
+            if (provider.hasOwnTracking())
+            {
+                // the motion as seen by the own filter and predictor of the provider
+                MotionPredictor own = provider.getPredictor();
+                float ownDX = own.getX(id) - own.getPreviousX(id);
+                float ownDY = own.getY(id) - own.getPreviousY(id);
+                
+                if (isMotion(ownDX, ownDY)) provider.fingerMoved(id, newFingerState, ownDX, ownDY);
+            }
+            else if (moved) provider.fingerMoved(id, newFingerState, dX, dY);
+        }
+    }
+    
+    private static boolean isMotion(float dX, float dY)
+    {
+        return Math.abs(dX) > MultiTouchProvider.MOTION_THRESHOLD || Math.abs(dY) > MultiTouchProvider.MOTION_THRESHOLD;
+    }
+    
+    /**
+     * @param targets
+     *            the providers to notify (fingers that were not updated in the current frame are
+     *            considered static)
+     */
+    private void processTwoFingersEvent(MultiTouchProvider[] targets)
+    {
+        int gestures = classifyTwoFingers(predictor);
+        
+        if (gestures == 0) filtered++;
+        else
+        {
+            this.gestures = gestures;
+            gestureFingers = 2;
+            
+            for (MultiTouchProvider provider : targets)
+                if (!provider.hasOwnTracking()) provider.twoFingersGesture(gestures, gesture);
+        }
+        
+        if (ownTracking) for (MultiTouchProvider provider : targets)
+        {
+            if (!provider.hasOwnTracking()) continue;
+            
+            int own = classifyTwoFingers(provider.getPredictor());
+            if (own != 0) provider.twoFingersGesture(own, gesture);
+        }
+    }
+    
+    /**
+     * Classifies the gesture of the two pressed fingers of the device (stored in
+     * {@link #deviceSlots}) into {@link #gesture}, from the positions of the specified predictor
+     * 
+     * @return the detected gestures (see {@link TwoFingersKernel})
+     */
+    private int classifyTwoFingers(MotionPredictor p)
+    {
+        // the two pressed fingers of the device, in slot order
+        int id1 = Math.min(deviceSlots[0], deviceSlots[1]);
+        int id2 = Math.max(deviceSlots[0], deviceSlots[1]);
+        
+        float x1 = p.getX(id1), y1 = p.getY(id1), x1old = x1, y1old = y1;
+        float x2 = p.getX(id2), y2 = p.getY(id2), x2old = x2, y2old = y2;
+        
+        if (updates[id1] == sequence)
+        {
+            x1old = p.getPreviousX(id1);
+            y1old = p.getPreviousY(id1);
+        }
+        if (updates[id2] == sequence)
+        {
+            x2old = p.getPreviousX(id2);
+            y2old = p.getPreviousY(id2);
+        }
+        
+        return TwoFingersKernel.classify(x1, y1, x1old, y1old, x2, y2, x2old, y2old, gesture);
+    }
+    
+    /**
+     * @param targets
+     *            the providers to notify (fingers that were not updated in the current frame are
+     *            considered static)
+     * @param count
+     *            the number of pressed fingers of the device (stored in {@link #deviceSlots})
+     */
+    private void processMultiFingersEvent(MultiTouchProvider[] targets, int count)
+    {
+        int gestures = analyzeMultiFingers(predictor, count);
+        
+        if (gestures == 0) filtered++;
+        else
+        {
+            this.gestures = gestures;
+            gestureFingers = count;
+            
+            for (MultiTouchProvider provider : targets)
+                if (!provider.hasOwnTracking()) provider.multiFingersGesture(count, gestures, multiGesture);
+        }
+        
+        if (ownTracking) for (MultiTouchProvider provider : targets)
+        {
+            if (!provider.hasOwnTracking()) continue;
+            
+            int own = analyzeMultiFingers(provider.getPredictor(), count);
+            if (own != 0) provider.multiFingersGesture(count, own, multiGesture);
+        }
+    }
+    
+    /**
+     * Analyzes the gesture of the pressed fingers of the device (stored in {@link #deviceSlots})
+     * into {@link #multiGesture}, from the positions of the specified predictor
+     * 
+     * @return the detected gestures (see {@link MultiFingersKernel})
+     */
+    private int analyzeMultiFingers(MotionPredictor p, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            int id = deviceSlots[i];
+            
+            x[i] = xOld[i] = p.getX(id);
+            y[i] = yOld[i] = p.getY(id);
+            
+            if (updates[id] == sequence)
+            {
+                xOld[i] = p.getPreviousX(id);
+                yOld[i] = p.getPreviousY(id);
+            }
+        }
+        
+        return MultiFingersKernel.analyze(x, y, xOld, yOld, count, multiGesture);
+    }
+}
@@ -0,0 +1,375 @@
+package plugins.adufour.multitouch;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.vecmath.Vector2f;
+
+import com.alderstone.multitouch.mac.touchpad.Finger;
+
+/**
+ * Isolated dispatch lane of a single motion or two-finger listener (see
+ * {@link MultiTouchProvider#setIsolatedDispatch(long)}). Events are posted into a bounded mailbox
+ * (one pending motion per finger, one pending drag, pinch and rotation), and delivered on a small
+ * shared thread pool. While the listener is busy, new events are merged into the pending ones
+ * instead of queuing up: a slow listener therefore always receives the latest motion (in fewer,
+ * larger steps) and never delays the other listeners nor the touch driver.
+ * 
+ * @author adufour
+ */
+class ListenerLane implements Runnable
+{
+    /**
+     * Threads shared by all lanes (created on demand, and stopped after a second of inactivity),
+     * which also run the watchdogs of the deliveries
+     */
+    private static class Pool
+    {
+        static final ScheduledThreadPoolExecutor executor;
+        
+        static
+        {
+            int nbThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            
+            executor = new ScheduledThreadPoolExecutor(nbThreads, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "Multi-touch listener lane");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setKeepAliveTime(1, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            
+            // the watchdogs of the deliveries completed in time are cancelled
+            executor.setRemoveOnCancelPolicy(true);
+        }
+    }
+    
+    /**
+     * @return the threads shared by all lanes
+     */
+    static Executor getSharedExecutor()
+    {
+        return Pool.executor;
+    }
+    
+    private final MultiTouchProvider   provider;
+    
+    private final FingerMotionListener motionListener;
+    
+    private final TwoFingersListener   twoFingersListener;
+    
+    /** Whether this lane is queued or running on the pool */
+    private final AtomicBoolean        scheduled       = new AtomicBoolean(false);
+    
+    /** Time (from {@link System#nanoTime()}) at which the current delivery started, or 0 */
+    private volatile long              busySince       = 0L;
+    
+    /** Whether the current delivery was already reported as too slow */
+    private volatile boolean           overrunReported = false;
+    
+    /** Number of deliveries that exceeded the time budget */
+    private volatile int               overruns        = 0;
+    
+    /** Checks the budget of the current delivery once it has elapsed, even if no event comes */
+    private final Runnable             watchdog;
+    
+    // pending events (guarded by this)
+    
+    private final Finger[]             pendingFingers;
+    
+    private final float[]              pendingDX;
+    
+    private final float[]              pendingDY;
+    
+    private final boolean[]            pendingMotion;
+    
+    private float                      pendingDragX;
+    
+    private float                      pendingDragY;
+    
+    private float                      pendingPinch;
+    
+    private float                      pendingRotation;
+    
+    private boolean                    pendingDrag;
+    
+    private boolean                    pendingPinchGesture;
+    
+    private boolean                    pendingRotateGesture;
+    
+    /** Whether any event is pending */
+    private boolean                    pending;
+    
+    // events being delivered (only used by the running lane)
+    
+    private final Finger[]             fingers;
+    
+    private final float[]              dX;
+    
+    private final float[]              dY;
+    
+    private final boolean[]            motion;
+    
+    /** Drag direction handed to the listener if it only takes vectors */
+    private final Vector2f             dragDirection   = new Vector2f();
+    
+    /**
+     * Creates a lane for a motion listener
+     */
+    ListenerLane(MultiTouchProvider provider, FingerMotionListener listener)
+    {
+        this(provider, listener, null);
+    }
+    
+    /**
+     * Creates a lane for a two-finger listener
+     */
+    ListenerLane(MultiTouchProvider provider, TwoFingersListener listener)
+    {
+        this(provider, null, listener);
+    }
+    
+    private ListenerLane(MultiTouchProvider provider, FingerMotionListener motionListener, TwoFingersListener twoFingersListener)
+    {
+        this.provider = provider;
+        this.motionListener = motionListener;
+        this.twoFingersListener = twoFingersListener;
+        
+        watchdog = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                checkBudget();
+            }
+        };
+        
+        int nbSlots = motionListener == null ? 0 : MultiTouchProvider.MAX_FINGER_BLOBS;
+        pendingFingers = new Finger[nbSlots];
+        pendingDX = new float[nbSlots];
+        pendingDY = new float[nbSlots];
+        pendingMotion = new boolean[nbSlots];
+        fingers = new Finger[nbSlots];
+        dX = new float[nbSlots];
+        dY = new float[nbSlots];
+        motion = new boolean[nbSlots];
+    }
+    
+    /**
+     * @return the listener served by this lane
+     */
+    Object getListener()
+    {
+        return motionListener != null ? motionListener : twoFingersListener;
+    }
+    
+    /**
+     * Posts a finger motion
+     * 
+     * @param slot
+     *            the finger slot
+     * @param finger
+     *            the finger state (copied)
+     * @param deltaX
+     * @param deltaY
+     * @return <code>true</code> if the motion was merged into a pending one
+     */
+    boolean postMotion(int slot, Finger finger, float deltaX, float deltaY)
+    {
+        checkBudget();
+        
+        boolean merged;
+        
+        synchronized (this)
+        {
+            merged = pendingMotion[slot];
+            
+            if (pendingFingers[slot] == null) pendingFingers[slot] = finger.copy();
+            else pendingFingers[slot].copyFrom(finger);
+            
+            pendingDX[slot] += deltaX;
+            pendingDY[slot] += deltaY;
+            pendingMotion[slot] = true;
+            pending = true;
+        }
+        
+        schedule();
+        return merged;
+    }
+    
+    /**
+     * Posts a two-finger drag
+     * 
+     * @return <code>true</code> if the drag was merged into a pending one
+     */
+    boolean postDrag(float directionX, float directionY, float delta)
+    {
+        checkBudget();
+        
+        boolean merged;
+        
+        synchronized (this)
+        {
+            merged = pendingDrag;
+            pendingDragX += directionX * delta;
+            pendingDragY += directionY * delta;
+            pendingDrag = true;
+            pending = true;
+        }
+        
+        schedule();
+        return merged;
+    }
+    
+    /**
+     * Posts a two-finger pinch
+     * 
+     * @return <code>true</code> if the pinch was merged into a pending one
+     */
+    boolean postPinch(float delta)
+    {
+        checkBudget();
+        
+        boolean merged;
+        
+        synchronized (this)
+        {
+            merged = pendingPinchGesture;
+            pendingPinch += delta;
+            pendingPinchGesture = true;
+            pending = true;
+        }
+        
+        schedule();
+        return merged;
+    }
+    
+    /**
+     * Posts a two-finger rotation
+     * 
+     * @return <code>true</code> if the rotation was merged into a pending one
+     */
+    boolean postRotate(float angle)
+    {
+        checkBudget();
+        
+        boolean merged;
+        
+        synchronized (this)
+        {
+            merged = pendingRotateGesture;
+            pendingRotation += angle;
+            pendingRotateGesture = true;
+            pending = true;
+        }
+        
+        schedule();
+        return merged;
+    }
+    
+    /**
+     * Watchdog: reports the listener (once per delivery) if it has been running for longer than
+     * the time budget of the provider. This is checked when the budget of a delivery has elapsed,
+     * and whenever a new event is posted
+     */
+    private void checkBudget()
+    {
+        long since = busySince;
+        
+        if (since != 0L && !overrunReported && System.nanoTime() - since >= provider.getListenerTimeBudget())
+        {
+            overrunReported = true;
+            provider.listenerOverrun(getListener(), overruns++ == 0);
+        }
+    }
+    
+    private void schedule()
+    {
+        if (scheduled.compareAndSet(false, true)) Pool.executor.execute(this);
+    }
+    
+    @Override
+    public void run()
+    {
+        float dragX, dragY, pinch, rotation;
+        boolean drag, pinchGesture, rotateGesture;
+        
+        synchronized (this)
+        {
+            for (int i = 0; i < pendingMotion.length; i++)
+            {
+                motion[i] = pendingMotion[i];
+                if (!motion[i]) continue;
+                
+                if (fingers[i] == null) fingers[i] = pendingFingers[i].copy();
+                else fingers[i].copyFrom(pendingFingers[i]);
+                
+                dX[i] = pendingDX[i];
+                dY[i] = pendingDY[i];
+                pendingDX[i] = pendingDY[i] = 0f;
+                pendingMotion[i] = false;
+            }
+            
+            dragX = pendingDragX;
+            dragY = pendingDragY;
+            pinch = pendingPinch;
+            rotation = pendingRotation;
+            drag = pendingDrag;
+            pinchGesture = pendingPinchGesture;
+            rotateGesture = pendingRotateGesture;
+            
+            pendingDragX = pendingDragY = pendingPinch = pendingRotation = 0f;
+            pendingDrag = pendingPinchGesture = pendingRotateGesture = pending = false;
+        }
+        
+        busySince = System.nanoTime();
+        
+        ScheduledFuture<?> timer = Pool.executor.schedule(watchdog, provider.getListenerTimeBudget(), TimeUnit.NANOSECONDS);
+        
+        try
+        {
+            if (motionListener != null)
+            {
+                for (int i = 0; i < motion.length; i++)
+                    if (motion[i]) motionListener.fingerMoved(provider, fingers[i], dX[i], dY[i]);
+            }
+            else
+            {
+                if (drag)
+                {
+                    float delta = (float) Math.sqrt(dragX * dragX + dragY * dragY);
+                    if (delta > 0f) provider.drag(twoFingersListener, dragX / delta, dragY / delta, delta, dragDirection);
+                }
+                if (pinchGesture) twoFingersListener.pinch(provider, pinch);
+                if (rotateGesture) twoFingersListener.rotate(provider, rotation);
+            }
+        }
+        finally
+        {
+            timer.cancel(false);
+            provider.laneCompleted(this, motionListener != null, System.nanoTime() - busySince);
+            
+            busySince = 0L;
+            overrunReported = false;
+            
+            scheduled.set(false);
+            
+            // deliver what was posted in the meantime (merged)
+            boolean more;
+            synchronized (this)
+            {
+                more = pending;
+            }
+            if (more) schedule();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package plugins.adufour.multitouch;
+
+/**
+ * Extrapolates the filtered finger positions to a target presentation time, using their filtered
+ * speed. Motion and gestures computed from the extrapolated positions are thereby shifted forward
+ * in time, which hides (part of) the latency between a touch and its display.<br/>
+ * The prediction horizon is either fixed, or follows the presentation latency reported by the
+ * consumer (see {@link MultiTouchProvider#reportPresentationLatency(double)}). Each provider has
+ * its own predictor, applied to the positions of the filter it uses (see {@link #beginFrame}).
+ * 
+ * @author adufour
+ */
+class MotionPredictor
+{
+    /**
+     * Weight of a new latency report in the measured latency (exponential moving average)
+     */
+    private static final double LATENCY_SMOOTHING = 0.1;
+    
+    private volatile double     fixedHorizon      = 0.0;
+    
+    private volatile boolean    measured          = false;
+    
+    private volatile double     measuredLatency   = 0.0;
+    
+    /**
+     * Horizon and filtered positions used for the current frame (only used by the thread
+     * dispatching the frames)
+     */
+    private float               horizon           = 0f;
+    
+    private FingerFilter        filter;
+    
+    void setFixedHorizon(double seconds)
+    {
+        if (seconds < 0) throw new IllegalArgumentException("The prediction horizon cannot be negative");
+        
+        fixedHorizon = seconds;
+        measured = false;
+    }
+    
+    void setMeasuredHorizon()
+    {
+        measured = true;
+    }
+    
+    boolean isMeasured()
+    {
+        return measured;
+    }
+    
+    void reportLatency(double seconds)
+    {
+        if (seconds < 0) return;
+        
+        double latency = measuredLatency;
+        measuredLatency = latency == 0.0 ? seconds : latency + LATENCY_SMOOTHING * (seconds - latency);
+    }
+    
+    /**
+     * @return the current prediction horizon (in seconds)
+     */
+    double getHorizon()
+    {
+        return Math.min(measured ? measuredLatency : fixedHorizon, MultiTouchProvider.MAX_PREDICTION_HORIZON);
+    }
+    
+    /**
+     * Freezes the prediction horizon for the frame about to be analyzed, so that all the positions
+     * of that frame (current and previous) are extrapolated consistently
+     * 
+     * @param frameFilter
+     *            the filtered positions to extrapolate
+     * @return <code>true</code> if the positions are extrapolated in this frame (i.e. the horizon
+     *         is not null)
+     */
+    boolean beginFrame(FingerFilter frameFilter)
+    {
+        filter = frameFilter;
+        horizon = (float) getHorizon();
+        return horizon != 0f;
+    }
+    
+    /**
+     * @return the predicted position of the finger in the specified slot
+     */
+    float getX(int slot)
+    {
+        return filter.getX(slot) + filter.getSpeedX(slot) * horizon;
+    }
+    
+    /**
+     * @return the predicted position of the finger in the specified slot
+     */
+    float getY(int slot)
+    {
+        return filter.getY(slot) + filter.getSpeedY(slot) * horizon;
+    }
+    
+    /**
+     * @return the position of the finger in the specified slot, as predicted before the last
+     *         sample
+     */
+    float getPreviousX(int slot)
+    {
+        return filter.getPreviousX(slot) + filter.getPreviousSpeedX(slot) * horizon;
+    }
+    
+    /**
+     * @return the position of the finger in the specified slot, as predicted before the last
+     *         sample
+     */
+    float getPreviousY(int slot)
+    {
+        return filter.getPreviousY(slot) + filter.getPreviousSpeedY(slot) * horizon;
+    }
+}
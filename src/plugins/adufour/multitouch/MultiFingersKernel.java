@@ -0,0 +1,151 @@
+package plugins.adufour.multitouch;
+
+/**
+ * Stateless analysis of the motion of any number of fingers between two consecutive frames. A
+ * single pass over the fingers accumulates a few sums, from which the centroid, the spread (root
+ * mean square distance of the fingers to the centroid), the translation of the centroid and the
+ * rotation about the centroid (least-squares angle between the old and new finger
+ * configurations) are derived. Swipe, pinch and rotate gestures are then classified from these
+ * statistics, with the same thresholds as the two-finger gestures (see {@link TwoFingersKernel}).
+ * All computations are done on primitive values, and the results are written into a
+ * caller-provided array, so that the analysis does not allocate anything.
+ * 
+ * @author adufour
+ */
+public final class MultiFingersKernel
+{
+    /** Flag set by {@link #analyze} when all fingers move in the same direction */
+    public static final int SWIPE         = 1;
+    
+    /** Flag set by {@link #analyze} when the fingers get closer to (or away from) each other */
+    public static final int PINCH         = 2;
+    
+    /** Flag set by {@link #analyze} when the fingers turn around their centroid */
+    public static final int ROTATE        = 4;
+    
+    /** Index of the current centroid (X component) in the result array */
+    public static final int CENTROID_X    = 0;
+    
+    /** Index of the current centroid (Y component) in the result array */
+    public static final int CENTROID_Y    = 1;
+    
+    /** Index of the current spread in the result array */
+    public static final int SPREAD        = 2;
+    
+    /** Index of the translation of the centroid (X component) in the result array */
+    public static final int TRANSLATION_X = 3;
+    
+    /** Index of the translation of the centroid (Y component) in the result array */
+    public static final int TRANSLATION_Y = 4;
+    
+    /**
+     * Index of the spread variation in the result array (previous minus current spread, as for
+     * {@link TwoFingersKernel#PINCH_DELTA})
+     */
+    public static final int SPREAD_DELTA  = 5;
+    
+    /** Index of the rotation angle (in radians) about the centroid in the result array */
+    public static final int ROTATION      = 6;
+    
+    /** Minimum size of the result array */
+    public static final int RESULT_SIZE   = 7;
+    
+    private MultiFingersKernel()
+    {
+    }
+    
+    /**
+     * Analyzes the motion of several fingers between two consecutive frames. The statistics are
+     * always written into the result array. A swipe excludes the other gestures, while a pinch
+     * and a rotation may be detected simultaneously, unless the pinch is too large (see
+     * {@link MultiTouchProvider#PINCH_OVER_ROTATION_THRESHOLD}).
+     * 
+     * @param x
+     *            current positions of the fingers
+     * @param y
+     *            current positions of the fingers
+     * @param xOld
+     *            previous positions of the fingers
+     * @param yOld
+     *            previous positions of the fingers
+     * @param count
+     *            the number of fingers (at least 2)
+     * @param result
+     *            an array of at least {@link #RESULT_SIZE} elements, where the statistics are
+     *            stored (see the index constants of this class)
+     * @return a combination of the {@link #SWIPE}, {@link #PINCH} and {@link #ROTATE} flags (or 0
+     *         if no gesture is detected)
+     */
+    public static int analyze(float[] x, float[] y, float[] xOld, float[] yOld, int count, float[] result)
+    {
+        // single pass: first and second order sums (in double precision, since variances are
+        // obtained by difference)
+        double sx = 0, sy = 0, sxOld = 0, syOld = 0;
+        double sNorm = 0, sNormOld = 0, sDot = 0, sCross = 0;
+        
+        for (int i = 0; i < count; i++)
+        {
+            final double xi = x[i], yi = y[i], xo = xOld[i], yo = yOld[i];
+            
+            sx += xi;
+            sy += yi;
+            sxOld += xo;
+            syOld += yo;
+            sNorm += xi * xi + yi * yi;
+            sNormOld += xo * xo + yo * yo;
+            sDot += xo * xi + yo * yi;
+            sCross += xo * yi - yo * xi;
+        }
+        
+        final double n = count;
+        
+        // centroids
+        final double cx = sx / n, cy = sy / n, cxOld = sxOld / n, cyOld = syOld / n;
+        
+        // spreads
+        final double spread = Math.sqrt(Math.max(0, sNorm / n - cx * cx - cy * cy));
+        final double spreadOld = Math.sqrt(Math.max(0, sNormOld / n - cxOld * cxOld - cyOld * cyOld));
+        
+        // translation, and mean squared displacement of the fingers relative to the centroid
+        final double tx = cx - cxOld, ty = cy - cyOld;
+        final double translation = tx * tx + ty * ty;
+        final double residual = (sNorm + sNormOld - 2 * sDot) / n - translation;
+        
+        // rotation about the centroid, from the centered cross and dot products
+        final double dot = sDot / n - (cxOld * cx + cyOld * cy);
+        final double cross = sCross / n - (cxOld * cy - cyOld * cx);
+        
+        result[CENTROID_X] = (float) cx;
+        result[CENTROID_Y] = (float) cy;
+        result[SPREAD] = (float) spread;
+        result[TRANSLATION_X] = (float) tx;
+        result[TRANSLATION_Y] = (float) ty;
+        result[SPREAD_DELTA] = (float) (spreadOld - spread);
+        result[ROTATION] = (float) Math.atan2(cross, dot);
+        
+        // swipe: the fingers move together, more than relative to each other
+        
+        if (translation > MultiTouchProvider.DRAG_THRESHOLD && translation > residual) return SWIPE;
+        
+        int gestures = 0;
+        
+        // the two-finger thresholds apply to the axis between the fingers, i.e. twice the spread
+        
+        // pinch
+        
+        final double dDistance = 2 * Math.abs(spreadOld - spread);
+        
+        if (dDistance > MultiTouchProvider.PINCH_THRESHOLD)
+        {
+            gestures |= PINCH;
+            
+            if (dDistance > MultiTouchProvider.PINCH_OVER_ROTATION_THRESHOLD) return gestures;
+        }
+        
+        // rotate
+        
+        if (4 * Math.abs(cross) > MultiTouchProvider.ROTATE_THRESHOLD) gestures |= ROTATE;
+        
+        return gestures;
+    }
+}
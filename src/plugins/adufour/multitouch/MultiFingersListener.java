@@ -0,0 +1,46 @@
+package plugins.adufour.multitouch;
+
+/**
+ * Interface used to receive the gestures of three fingers or more (see {@link MultiFingersKernel}
+ * ). Two-finger gestures are sent to the {@link TwoFingersListener}s instead.
+ * 
+ * @author adufour
+ */
+public interface MultiFingersListener
+{
+	/**
+	 * Called when all the fingers move in the same direction
+	 * 
+	 * @param source
+	 * @param fingers
+	 *            the number of fingers on the pad
+	 * @param dx
+	 *            the translation of the centroid of the fingers along X
+	 * @param dy
+	 *            the translation of the centroid of the fingers along Y
+	 */
+	void swipe(MultiTouchProvider source, int fingers, float dx, float dy);
+	
+	/**
+	 * Called when the fingers get closer to (or away from) each other. As for
+	 * {@link TwoFingersListener#pinch(MultiTouchProvider, float)}, the delta is the previous minus
+	 * the current spread of the fingers (i.e. their root mean square distance to their centroid)
+	 * 
+	 * @param source
+	 * @param fingers
+	 *            the number of fingers on the pad
+	 * @param delta
+	 */
+	void pinch(MultiTouchProvider source, int fingers, float delta);
+	
+	/**
+	 * Called when the fingers turn around their centroid
+	 * 
+	 * @param source
+	 * @param fingers
+	 *            the number of fingers on the pad
+	 * @param angle
+	 *            the rotation angle in radians
+	 */
+	void rotate(MultiTouchProvider source, int fingers, float angle);
+}
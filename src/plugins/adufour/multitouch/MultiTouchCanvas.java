@@ -10,31 +10,97 @@ import icy.main.Icy;
 import icy.plugin.abstract_.PluginActionable;
 import icy.system.IcyHandledException;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.vecmath.Vector2f;
 
+import vtk.vtkAbstractVolumeMapper;
 import vtk.vtkCamera;
+import vtk.vtkFixedPointVolumeRayCastMapper;
+import vtk.vtkGPUVolumeRayCastMapper;
+import vtk.vtkRenderWindow;
 import vtk.vtkRenderer;
+import vtk.vtkVolume;
+import vtk.vtkVolumeCollection;
+
+import com.alderstone.multitouch.mac.touchpad.Finger;
+import com.alderstone.multitouch.mac.touchpad.FingerState;
 
 public class MultiTouchCanvas extends PluginActionable
 {
+    /**
+     * Default time (in milliseconds) after the release of all fingers before the full rendering
+     * quality is restored
+     */
+    public static final int    DEFAULT_IDLE_DELAY          = 300;
+    
+    /**
+     * Frame rate requested from VTK while a gesture is in progress (VTK lowers the volume sampling
+     * accordingly)
+     */
+    public static final double INTERACTIVE_UPDATE_RATE     = 15.0;
+    
+    /**
+     * Factor applied to the distance between the volume samples (along each ray) while a gesture
+     * is in progress
+     */
+    public static final double INTERACTIVE_SAMPLE_DISTANCE = 4.0;
+    
     private MultiTouchProvider provider;
     
+    private int                idleDelay                   = DEFAULT_IDLE_DELAY;
+    
+    /**
+     * Sets the time after the release of all fingers before the full rendering quality is
+     * restored
+     * 
+     * @param milliseconds
+     */
+    public void setIdleDelay(int milliseconds)
+    {
+        if (milliseconds < 0) throw new IllegalArgumentException("The idle delay cannot be negative");
+        
+        idleDelay = milliseconds;
+    }
+    
+    /**
+     * @return the time (in milliseconds) after the release of all fingers before the full
+     *         rendering quality is restored
+     */
+    public int getIdleDelay()
+    {
+        return idleDelay;
+    }
+    
     @Override
     public void run()
     {
         try
         {
             provider = new MultiTouchProvider();
-            final TwoFingersListener twoFingersListener = new MultiTouchActor();
+            final MultiTouchActor actor = new MultiTouchActor();
+            
+            provider.addTwoFingersListener(actor);
+            provider.addFingerListener(actor);
             
-            provider.addTwoFingersListener(twoFingersListener);
+            // hide the repaint latency of large images (only the gestures of this provider are
+            // extrapolated)
+            provider.setMeasuredPredictionHorizon();
             
             new AnnounceFrame("Multi-touch gestures activated...", "De-activate", new Runnable()
             {
                 @Override
                 public void run()
                 {
-                    if (twoFingersListener != null) provider.removeTwoFingersListener(twoFingersListener);
+                    provider.removeTwoFingersListener(actor);
+                    provider.removeFingerListener(actor);
+                    actor.restoreFullQuality();
                 }
             }, 0);
         }
@@ -56,94 +122,352 @@ public class MultiTouchCanvas extends PluginActionable
         return viewer == null ? null : viewer.getCanvas();
     }
     
-    private class MultiTouchActor implements TwoFingersListener
+    /**
+     * Applies the multi-touch gestures to the focused canvas. Gesture events are not applied one
+     * by one: their deltas are accumulated, and applied as a single combined transform once per
+     * tick on the event dispatch thread (i.e. in step with the repaint cycle), followed by at most
+     * one repaint.<br/>
+     * While a gesture is in progress, the canvas is switched to a cheaper interactive rendering,
+     * and the full quality is restored once all fingers have been released for
+     * {@link MultiTouchCanvas#getIdleDelay()} ms. A 2D canvas hides its layers (ROIs, overlays)
+     * and applies the transforms without animation; a 3D canvas samples its volumes more coarsely
+     * (and adaptively, following the VTK update rate). Only the settings of that canvas are
+     * changed: the global (persisted) preferences, such as the image filtering, are left as is.
+     */
+    private class MultiTouchActor implements PrimitiveTwoFingersListener, FingerStateListener, Runnable, ActionListener
     {
+        /** Whether a tick is already scheduled on the event dispatch thread */
+        private final AtomicBoolean                        tickScheduled        = new AtomicBoolean(false);
+        
+        // accumulated deltas since the last tick (guarded by this)
+        
+        /** Time (in nanoseconds) of the oldest event accumulated since the last tick */
+        private long                                       pendingSince         = 0L;
+        
+        private float                                      rotation             = 0f;
+        
+        private float                                      pinch                = 0f;
+        
+        /** Product of the successive (3D) zoom factors */
+        private double                                     zoom                 = 1.0;
+        
+        private float                                      dragX                = 0f;
+        
+        private float                                      dragY                = 0f;
+        
+        // interactive rendering (only used on the event dispatch thread)
+        
+        /** Canvas currently rendered in interactive mode, or null */
+        private IcyCanvas                                  interactiveCanvas;
+        
+        /** VTK update rate before the interactive mode */
+        private double                                     savedUpdateRate;
+        
+        /** Volume sample distances before the interactive mode */
+        private final Map<vtkAbstractVolumeMapper, Double> savedSampleDistances = new HashMap<vtkAbstractVolumeMapper, Double>();
+        
+        /** Layer visibility before the interactive mode */
+        private boolean                                    savedLayersVisible;
+        
+        /** Restores the full quality once the fingers are released */
+        private final Timer                                idleTimer            = new Timer(DEFAULT_IDLE_DELAY, this);
+        
+        MultiTouchActor()
+        {
+            idleTimer.setRepeats(false);
+        }
+        
         @Override
         public void rotate(MultiTouchProvider source, float angle)
         {
-            IcyCanvas canvas = getCanvas();
-            
-            if (canvas instanceof Canvas2D)
+            synchronized (this)
             {
-                Canvas2D c2D = (Canvas2D) canvas;
-                c2D.setRotation(c2D.getRotationZ() - angle * 10, true);
+                rotation += angle;
             }
-            else if (canvas instanceof Canvas3D)
+            scheduleTick();
+        }
+        
+        @Override
+        public void pinch(MultiTouchProvider source, float delta)
+        {
+            synchronized (this)
             {
-                Canvas3D c3d = (Canvas3D) canvas;
-                vtkRenderer ren = c3d.getRenderer();
-                vtkCamera cam = ren.GetActiveCamera();
-                cam.Roll(angle * 360);
-                c3d.getPanel3D().repaint();
+                pinch += delta;
+                zoom *= 1.0 - delta * 4;
             }
+            scheduleTick();
         }
         
         @Override
-        public void pinch(MultiTouchProvider source, float delta)
+        public void drag(MultiTouchProvider source, Vector2f direction, float delta)
+        {
+            drag(source, direction.x, direction.y, delta);
+        }
+        
+        @Override
+        public void drag(MultiTouchProvider source, float directionX, float directionY, float delta)
         {
+            synchronized (this)
+            {
+                dragX += directionX * delta;
+                dragY += directionY * delta;
+            }
+            scheduleTick();
+        }
+        
+        private void scheduleTick()
+        {
+            synchronized (this)
+            {
+                if (pendingSince == 0L) pendingSince = System.nanoTime();
+            }
+            if (tickScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this);
+        }
+        
+        /**
+         * Applies all the gestures accumulated since the last tick (on the event dispatch thread)
+         */
+        @Override
+        public void run()
+        {
+            tickScheduled.set(false);
+            
+            float rotation, pinch, dragX, dragY;
+            double zoom;
+            long since;
+            
+            synchronized (this)
+            {
+                rotation = this.rotation;
+                pinch = this.pinch;
+                zoom = this.zoom;
+                dragX = this.dragX;
+                dragY = this.dragY;
+                
+                since = pendingSince;
+                
+                this.rotation = this.pinch = this.dragX = this.dragY = 0f;
+                this.zoom = 1.0;
+                this.pendingSince = 0L;
+            }
+            
             IcyCanvas canvas = getCanvas();
             
+            enterInteractiveMode(canvas);
+            
             if (canvas instanceof Canvas2D)
             {
                 Canvas2D c2D = (Canvas2D) canvas;
-                double newScale = c2D.getScaleX() - delta * 10;
-                c2D.setScale(newScale, newScale, false, true);
+                
+                // no animation: each tick already applies the latest state of the gesture
+                if (rotation != 0f) c2D.setRotation(c2D.getRotationZ() - rotation * 10, false);
+                
+                if (pinch != 0f)
+                {
+                    double newScale = c2D.getScaleX() - pinch * 10;
+                    c2D.setScale(newScale, newScale, false, false);
+                }
+                
+                if (dragX != 0f || dragY != 0f) c2D.setOffset(c2D.getOffsetX() + Math.round(dragX * 10000), c2D.getOffsetY() - Math.round(dragY * 10000), false);
             }
             else if (canvas instanceof Canvas3D)
             {
                 Canvas3D c3D = (Canvas3D) canvas;
                 
                 vtkCamera cam = c3D.getRenderer().GetActiveCamera();
-                cam.Zoom(1.0 - delta * 4);
+                
+                if (rotation != 0f) cam.Roll(rotation * 360);
+                
+                if (zoom != 1.0) cam.Zoom(zoom);
+                
+                if (dragX != 0f || dragY != 0f)
+                {
+                    // vtkRenderWindowInteractor interactor = ren.GetRenderWindow().GetInteractor();
+                    // if (interactor == null) // FIXME this is always the case...
+                    // {
+                    // interactor = ren.GetRenderWindow().MakeRenderWindowInteractor();
+                    // ren.GetRenderWindow().SetInteractor(interactor);
+                    // }
+                    //
+                    // int x = 0, y = 0;
+                    // interactor.SetEventInformation(x, y, 0, 0, ' ', 0, "");
+                    // interactor.MiddleButtonPressEvent();
+                    // x += direction.x;
+                    // y += direction.y;
+                    // interactor.SetEventInformation(x, y, 0, 0, ' ', 0, "");
+                    // interactor.MiddleButtonReleaseEvent();
+                    
+                    double[] pos = cam.GetPosition();
+                    pos[0] -= dragX * 1000;
+                    pos[1] += dragY * 1000;
+                    cam.SetPosition(pos);
+                    pos = cam.GetFocalPoint();
+                    pos[0] -= dragX * 1000;
+                    pos[1] += dragY * 1000;
+                    cam.SetFocalPoint(pos);
+                }
+                
                 c3D.getPanel3D().repaint();
             }
+            
+            if (since != 0L) reportLatencyAfterPaint(since);
+        }
+        
+        /**
+         * Reports the time from the specified event to its display, once the repaint requested by
+         * the current tick has been painted (on the event dispatch thread)
+         * 
+         * @param since
+         *            the time (in nanoseconds) of the oldest event applied by the current tick
+         */
+        private void reportLatencyAfterPaint(final long since)
+        {
+            // Swing queues the processing of the repaint requests no later than the first request,
+            // hence the events queued afterwards run once the canvas has been painted
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    provider.reportPresentationLatency((System.nanoTime() - since) / 1e9);
+                }
+            });
         }
         
         @Override
-        public void drag(MultiTouchProvider source, Vector2f direction, float delta)
+        public void fingerPressed(MultiTouchProvider multiTouchProvider, Finger f)
         {
-            IcyCanvas canvas = getCanvas();
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    idleTimer.stop();
+                }
+            });
+        }
+        
+        @Override
+        public void fingerReleased(MultiTouchProvider multiTouchProvider, Finger f)
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (interactiveCanvas == null) return;
+                    
+                    idleTimer.setInitialDelay(idleDelay);
+                    idleTimer.restart();
+                }
+            });
+        }
+        
+        @Override
+        public void fingerHover(MultiTouchProvider multiTouchProvider, Finger f)
+        {
+        }
+        
+        /**
+         * Idle timer: restores the full quality if no finger is pressed anymore (otherwise, waits
+         * for the next release)
+         */
+        @Override
+        public void actionPerformed(ActionEvent e)
+        {
+            if (provider.getCount(FingerState.PRESSED) == 0) restoreFullQuality();
+        }
+        
+        /**
+         * Switches the specified canvas to the interactive rendering (on the event dispatch
+         * thread)
+         */
+        private void enterInteractiveMode(IcyCanvas canvas)
+        {
+            idleTimer.stop();
+            
+            if (canvas == interactiveCanvas) return;
             
+            // the focus moved to another viewer during the gesture
+            restoreFullQuality();
+            
+            // only the settings of this canvas are changed
             if (canvas instanceof Canvas2D)
             {
-                Canvas2D c2D = (Canvas2D) canvas;
-                direction.scale(10000 * delta);
-                c2D.setOffset(c2D.getOffsetX() + Math.round(direction.x), c2D.getOffsetY() - Math.round(direction.y), true);
+                savedLayersVisible = canvas.isLayersVisible();
+                canvas.setLayersVisible(false);
             }
             else if (canvas instanceof Canvas3D)
             {
-                direction.scale(1000 * delta);
+                vtkRenderer renderer = ((Canvas3D) canvas).getRenderer();
+                vtkRenderWindow window = renderer.GetRenderWindow();
                 
-                Canvas3D c3D = (Canvas3D) canvas;
-                
-                // vtkRenderWindowInteractor interactor = ren.GetRenderWindow().GetInteractor();
-                // if (interactor == null) // FIXME this is always the case...
-                // {
-                // interactor = ren.GetRenderWindow().MakeRenderWindowInteractor();
-                // ren.GetRenderWindow().SetInteractor(interactor);
-                // }
-                //
-                // int x = 0, y = 0;
-                // interactor.SetEventInformation(x, y, 0, 0, ' ', 0, "");
-                // interactor.MiddleButtonPressEvent();
-                // x += direction.x;
-                // y += direction.y;
-                // interactor.SetEventInformation(x, y, 0, 0, ' ', 0, "");
-                // interactor.MiddleButtonReleaseEvent();
+                savedUpdateRate = window.GetDesiredUpdateRate();
+                window.SetDesiredUpdateRate(INTERACTIVE_UPDATE_RATE);
                 
-                vtkCamera cam = c3D.getRenderer().GetActiveCamera();
-                
-                double[] pos = cam.GetPosition();
-                pos[0] -= direction.x;
-                pos[1] += direction.y;
-                cam.SetPosition(pos);
-                pos = cam.GetFocalPoint();
-                pos[0] -= direction.x;
-                pos[1] += direction.y;
-                cam.SetFocalPoint(pos);
-                c3D.getPanel3D().repaint();
+                vtkVolumeCollection volumes = renderer.GetVolumes();
+                volumes.InitTraversal();
                 
+                for (vtkVolume volume = volumes.GetNextVolume(); volume != null; volume = volumes.GetNextVolume())
+                {
+                    vtkAbstractVolumeMapper mapper = volume.GetMapper();
+                    double distance = getSampleDistance(mapper);
+                    
+                    if (distance <= 0 || savedSampleDistances.containsKey(mapper)) continue;
+                    
+                    savedSampleDistances.put(mapper, distance);
+                    setSampleDistance(mapper, distance * INTERACTIVE_SAMPLE_DISTANCE);
+                }
             }
+            else return;
+            
+            interactiveCanvas = canvas;
+        }
+        
+        /**
+         * Restores the full rendering quality of the interactive canvas (if any), and repaints it
+         * (on the event dispatch thread)
+         */
+        void restoreFullQuality()
+        {
+            idleTimer.stop();
+            
+            IcyCanvas canvas = interactiveCanvas;
+            
+            if (canvas == null) return;
+            
+            interactiveCanvas = null;
+            
+            if (canvas instanceof Canvas2D)
+            {
+                canvas.setLayersVisible(savedLayersVisible);
+                return;
+            }
+            
+            for (Map.Entry<vtkAbstractVolumeMapper, Double> saved : savedSampleDistances.entrySet())
+                setSampleDistance(saved.getKey(), saved.getValue());
+            savedSampleDistances.clear();
+            
+            Canvas3D c3D = (Canvas3D) canvas;
+            c3D.getRenderer().GetRenderWindow().SetDesiredUpdateRate(savedUpdateRate);
+            c3D.getPanel3D().repaint();
+        }
+        
+        /**
+         * @return the distance between the samples of the specified volume mapper, or 0 if the
+         *         mapper does not sample the volume along rays
+         */
+        private double getSampleDistance(vtkAbstractVolumeMapper mapper)
+        {
+            if (mapper instanceof vtkFixedPointVolumeRayCastMapper) return ((vtkFixedPointVolumeRayCastMapper) mapper).GetSampleDistance();
+            if (mapper instanceof vtkGPUVolumeRayCastMapper) return ((vtkGPUVolumeRayCastMapper) mapper).GetSampleDistance();
+            return 0;
+        }
+        
+        private void setSampleDistance(vtkAbstractVolumeMapper mapper, double distance)
+        {
+            if (mapper instanceof vtkFixedPointVolumeRayCastMapper) ((vtkFixedPointVolumeRayCastMapper) mapper).SetSampleDistance(distance);
+            else if (mapper instanceof vtkGPUVolumeRayCastMapper) ((vtkGPUVolumeRayCastMapper) mapper).SetSampleDistance(distance);
         }
     }
 }
@@ -0,0 +1,33 @@
+package plugins.adufour.multitouch;
+
+import icy.plugin.abstract_.Plugin;
+import icy.plugin.interface_.PluginDaemon;
+
+import com.alderstone.multitouch.mac.touchpad.TouchpadObservable;
+
+/**
+ * Started by Icy at launch time, this daemon loads the native touchpad library in the background,
+ * so that the first multi-touch provider does not pay for it (see
+ * {@link TouchpadObservable#initializeInBackground()}). Failures (e.g. on other platforms than
+ * Mac OS X) are only reported once a provider actually needs the touchpad.
+ * 
+ * @author adufour
+ */
+public class MultiTouchDaemon extends Plugin implements PluginDaemon
+{
+    @Override
+    public void init()
+    {
+        TouchpadObservable.initializeInBackground();
+    }
+    
+    @Override
+    public void run()
+    {
+    }
+    
+    @Override
+    public void stop()
+    {
+    }
+}
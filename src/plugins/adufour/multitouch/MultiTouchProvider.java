@@ -1,85 +1,202 @@
 package plugins.adufour.multitouch;
 
 import icy.gui.dialog.MessageDialog;
+import icy.gui.frame.progress.AnnounceFrame;
 import icy.plugin.abstract_.Plugin;
 import icy.plugin.interface_.PluginLibrary;
 
-import java.util.ArrayList;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.vecmath.Point2f;
 import javax.vecmath.Vector2f;
-import javax.vecmath.Vector3f;
 
 import com.alderstone.multitouch.mac.touchpad.Finger;
 import com.alderstone.multitouch.mac.touchpad.FingerState;
+import com.alderstone.multitouch.mac.touchpad.ListenerRegistry;
+import com.alderstone.multitouch.mac.touchpad.NetworkTouchSource;
+import com.alderstone.multitouch.mac.touchpad.TouchFrame;
+import com.alderstone.multitouch.mac.touchpad.TouchInterest;
+import com.alderstone.multitouch.mac.touchpad.TouchMetrics;
+import com.alderstone.multitouch.mac.touchpad.TouchSource;
 import com.alderstone.multitouch.mac.touchpad.TouchpadObservable;
+import com.alderstone.multitouch.mac.touchpad.TraceReplaySource;
 
-public class MultiTouchProvider extends Plugin implements PluginLibrary, Observer
+/**
+ * Provides finger, motion and gesture events of the touchpad (or of any other {@link TouchSource}).
+ * All the providers of a source share a single {@link GestureEngine}, so that the fingers are
+ * tracked and the gestures analyzed only once per frame: each provider only subscribes to the
+ * engine, and forwards its results to its own listeners.<br/>
+ * As a consequence, the smoothing and prediction settings apply to all the providers of a source.
+ */
+public class MultiTouchProvider extends Plugin implements PluginLibrary
 {
     /** Rotation threshold used to distinguish pinch or drag from actual rotation */
-    public static final float                     ROTATE_THRESHOLD              = 0.0008f;
+    public static final float                            ROTATE_THRESHOLD              = 0.0008f;
     
     /** Motion threshold used to distinguish finger artifact from actual drag */
-    public static final float                     DRAG_THRESHOLD                = 0.000005f;
+    public static final float                            DRAG_THRESHOLD                = 0.000005f;
     
-    /** Maximum number of detectable fingers. (Current API is limited to 11) */
-    public static final int                       MAX_FINGER_BLOBS              = 20;
+    /**
+     * Maximum number of fingers tracked simultaneously, over all devices. (Current API is limited
+     * to 11 per device)
+     */
+    public static final int                              MAX_FINGER_BLOBS              = 20;
     
     /** Motion threshold used to distinguish finger artifact from actual motion */
-    public static final float                     MOTION_THRESHOLD              = 0.0003f;
+    public static final float                            MOTION_THRESHOLD              = 0.0003f;
     
     /** Motion threshold used to distinguish finger artifact from actual pinch gesture */
-    public static final float                     PINCH_THRESHOLD               = 0.005f;
+    public static final float                            PINCH_THRESHOLD               = 0.005f;
     
     /** Pinch threshold under which rotation is discarded (considered artifact) */
-    public static final float                     PINCH_OVER_ROTATION_THRESHOLD = 0.008f;
+    public static final float                            PINCH_OVER_ROTATION_THRESHOLD = 0.008f;
+    
+    /** Default time budget (in milliseconds) of an isolated listener */
+    public static final long                             DEFAULT_LISTENER_TIME_BUDGET  = 20;
+    
+    /** Maximum motion prediction horizon (in seconds), beyond which extrapolation overshoots */
+    public static final double                           MAX_PREDICTION_HORIZON        = 0.05;
+    
+    /** Display time (in seconds) of the slow listener warnings */
+    private static final int                             ANNOUNCE_TIME                 = 10;
     
     /**
      * Number of frames (consecutive events) to disregard before calculating motion events. This
      * threshold helps avoiding motion artifact from the finger when it is being first pressed
+     * 
+     * @deprecated frames are not discarded anymore: every frame goes through an adaptive filter
+     *             instead (see {@link #setSmoothing(double, double, double)})
      */
-    public static final int                       PRESSED_FRAMES_THRESHOLD      = 6;
+    @Deprecated
+    public static final int                              PRESSED_FRAMES_THRESHOLD      = 6;
     
-    private final Finger[]                        currentFingersState           = new Finger[MAX_FINGER_BLOBS];
+    // listener types (see metrics)
     
-    private final Finger[]                        oldFingersState               = new Finger[MAX_FINGER_BLOBS];
+    private static final int                             STATE_LISTENERS               = 0;
+    
+    private static final int                             MOTION_LISTENERS              = 1;
+    
+    private static final int                             TWO_FINGERS_LISTENERS         = 2;
+    
+    private static final int                             MULTI_FINGERS_LISTENERS       = 3;
+    
+    private static final AtomicInteger                   instances                     = new AtomicInteger();
     
     /**
-     * The number of frames each finger was pressed since the last pressed event
+     * Shared finger tracking and gesture analysis
      */
-    private final int[]                           nbFramesPressed               = new int[MAX_FINGER_BLOBS];
+    private final GestureEngine                          engine;
     
-    private final TouchpadObservable              tpo;
+    private final TouchSource                            source;
     
-    private final ArrayList<FingerStateListener>  listeners                     = new ArrayList<FingerStateListener>();
+    private final ListenerRegistry<FingerStateListener>  listeners                     = new ListenerRegistry<FingerStateListener>(FingerStateListener.class);
     
-    private final ArrayList<FingerMotionListener> motionListeners               = new ArrayList<FingerMotionListener>();
+    private final ListenerRegistry<FingerMotionListener> motionListeners               = new ListenerRegistry<FingerMotionListener>(FingerMotionListener.class);
     
-    private final ArrayList<TwoFingersListener>   twoFingersListeners           = new ArrayList<TwoFingersListener>();
+    private final ListenerRegistry<TwoFingersListener>   twoFingersListeners           = new ListenerRegistry<TwoFingersListener>(TwoFingersListener.class);
     
-    private boolean                               enabled                       = true;
+    private final ListenerRegistry<MultiFingersListener> multiFingersListeners         = new ListenerRegistry<MultiFingersListener>(MultiFingersListener.class);
+    
+    /**
+     * Dispatch lanes of the motion listeners (only used in isolated mode)
+     */
+    private final ListenerRegistry<ListenerLane>         motionLanes                   = new ListenerRegistry<ListenerLane>(ListenerLane.class);
+    
+    /**
+     * Dispatch lanes of the two-finger listeners (only used in isolated mode)
+     */
+    private final ListenerRegistry<ListenerLane>         twoFingersLanes               = new ListenerRegistry<ListenerLane>(ListenerLane.class);
+    
+    /**
+     * Publishers of the frames received by this provider (see {@link #getFramePublisher()})
+     */
+    private final ListenerRegistry<TouchFramePublisher>  publishers                    = new ListenerRegistry<TouchFramePublisher>(TouchFramePublisher.class);
+    
+    /** Default frame publisher (guarded by this) */
+    private TouchFramePublisher                          framePublisher                = null;
+    
+    /** Whether motion and two-finger listeners are notified in their own lane */
+    private volatile boolean                             isolated                      = false;
+    
+    /** Time budget (in nanoseconds) of an isolated listener */
+    private volatile long                                listenerTimeBudget            = DEFAULT_LISTENER_TIME_BUDGET * 1000000L;
+    
+    private final TouchMetrics                           metrics                       = new TouchMetrics("FingerStateListener", "FingerMotionListener", "TwoFingersListener", "MultiFingersListener");
+    
+    /**
+     * Drag direction handed to the two-finger listeners that do not implement
+     * {@link PrimitiveTwoFingersListener} (only used by the thread dispatching the frames)
+     */
+    private final Vector2f                               dragDirection                 = new Vector2f();
+    
+    /** Whether the current frame is timed (only used by the thread dispatching the frames) */
+    private boolean                                      timed                         = false;
+    
+    private volatile boolean                             enabled                       = true;
+    
+    /** Native events this provider is interested in */
+    private volatile TouchInterest                       interest                      = TouchInterest.ALL;
+    
+    /** Whether this provider is currently subscribed to its engine (guarded by this) */
+    private boolean                                      subscribed                    = false;
+    
+    /** Whether this provider was shut down (guarded by this) */
+    private boolean                                      shutDown                      = false;
+    
+    /**
+     * Own smoothing of the finger positions (see {@link #setSmoothing(double, double, double)}),
+     * or <code>null</code> to use the default filter of the engine
+     */
+    private volatile FingerFilter                        filter                        = null;
+    
+    /** Prediction of the finger positions seen by this provider (disabled by default) */
+    private final MotionPredictor                        predictor                     = new MotionPredictor();
+    
+    /** Own filter used for the current frame (only used by the thread dispatching the frames) */
+    private FingerFilter                                 frameFilter                   = null;
+    
+    /**
+     * Whether the current frame is smoothed or extrapolated differently from the other providers
+     * (only used by the thread dispatching the frames)
+     */
+    private boolean                                      ownTracking                   = false;
     
     /**
      * Creates a new MultiTouch provider, which can be used to listen to MultiTouch events.
      */
     public MultiTouchProvider()
     {
-        TouchpadObservable observable = null;
-        
+        this(getTouchpad());
+    }
+    
+    /**
+     * Creates a new MultiTouch provider listening to the specified touch source (e.g. a recorded
+     * trace, see {@link TraceReplaySource}, or a remote device, see {@link NetworkTouchSource})
+     * 
+     * @param source
+     */
+    public MultiTouchProvider(TouchSource source)
+    {
+        this.source = source;
+        this.engine = GestureEngine.acquire(source);
+        metrics.register("plugins.adufour.multitouch:type=MultiTouchProvider,id=" + instances.incrementAndGet());
+    }
+    
+    private static TouchSource getTouchpad()
+    {
         try
         {
-            observable = TouchpadObservable.getInstance();
-            observable.addObserver(this);
+            TouchpadObservable touchpad = TouchpadObservable.getInstance();
+            
+            // the engine copies what it keeps, and the fingers handed to the listeners are only
+            // valid during the notification: frames and fingers need not be allocated
+            touchpad.setRecycling(true);
+            
+            return touchpad;
         }
         catch (UnsupportedOperationException e)
         {
             MessageDialog.showDialog("Error", e.getMessage(), MessageDialog.ERROR_MESSAGE);
-        }
-        finally
-        {
-            tpo = observable;
+            return null;
         }
     }
     
@@ -101,40 +218,420 @@ public class MultiTouchProvider extends Plugin implements PluginLibrary, Observe
     public void setEnabled(boolean enabled)
     {
         this.enabled = enabled;
+        updateSubscription();
+    }
+    
+    /**
+     * Declares which native events this provider needs. Events that no provider (nor any other
+     * listener of the source) is interested in are rejected as soon as they are received, before
+     * any finger is created. For instance, a provider only serving two-finger listeners may use
+     * <code>new TouchInterest(TouchInterest.STATE_CHANGES | TouchInterest.MOTION, MOTION_THRESHOLD, TouchInterest.fingerCounts(2))</code>
+     * .<br/>
+     * The events are filtered with the union of the interests of all the listeners of the source,
+     * hence this provider may still receive events it is not interested in. Its state listeners
+     * are only notified if the interest includes {@link TouchInterest#STATE_CHANGES}.<br/>
+     * By default, all events are received ({@link TouchInterest#ALL}).
+     * 
+     * @param interest
+     */
+    public void setInterest(TouchInterest interest)
+    {
+        if (interest == null) throw new NullPointerException("The interest cannot be null");
+        
+        this.interest = interest;
+        engine.updateSubscription();
+    }
+    
+    /**
+     * @return the native events this provider is interested in
+     */
+    public TouchInterest getInterest()
+    {
+        return interest;
     }
     
     public void addFingerListener(FingerStateListener listener)
     {
-        listeners.add(listener);
+        if (listeners.add(listener)) updateSubscription();
     }
     
     public void addFingerMotionListener(FingerMotionListener listener)
     {
-        motionListeners.add(listener);
+        if (motionListeners.add(listener))
+        {
+            updateLanes();
+            updateSubscription();
+        }
     }
     
     public void addTwoFingersListener(TwoFingersListener listener)
     {
-        twoFingersListeners.add(listener);
+        if (twoFingersListeners.add(listener))
+        {
+            updateLanes();
+            updateSubscription();
+        }
+    }
+    
+    /**
+     * Adds a listener of the gestures of three fingers or more. These listeners are always
+     * notified on the thread dispatching the frames (even in isolated mode, see
+     * {@link #setIsolatedDispatch(long)})
+     * 
+     * @param listener
+     */
+    public void addMultiFingersListener(MultiFingersListener listener)
+    {
+        if (multiFingersListeners.add(listener)) updateSubscription();
     }
     
     public void removeFingerListener(FingerStateListener listener)
     {
-        listeners.remove(listener);
+        if (listeners.remove(listener)) updateSubscription();
     }
     
     public void removeFingerMotionListener(FingerMotionListener listener)
     {
-        motionListeners.remove(listener);
+        if (motionListeners.remove(listener))
+        {
+            updateLanes();
+            updateSubscription();
+        }
     }
     
     public void removeTwoFingersListener(TwoFingersListener listener)
     {
-        twoFingersListeners.remove(listener);
+        if (twoFingersListeners.remove(listener))
+        {
+            updateLanes();
+            updateSubscription();
+        }
+    }
+    
+    public void removeMultiFingersListener(MultiFingersListener listener)
+    {
+        if (multiFingersListeners.remove(listener)) updateSubscription();
+    }
+    
+    /**
+     * Gets the publisher of the frames received by this provider, for subscribers consuming them
+     * at their own pace (see {@link TouchFramePublisher}). The publisher is closed when this
+     * provider is shut down
+     * 
+     * @return a publisher of the frames received by this provider
+     */
+    public synchronized TouchFramePublisher getFramePublisher()
+    {
+        if (framePublisher == null) framePublisher = new TouchFramePublisher(this);
+        return framePublisher;
+    }
+    
+    /**
+     * @return <code>true</code> if this provider was shut down
+     */
+    synchronized boolean isShutDown()
+    {
+        return shutDown;
+    }
+    
+    /**
+     * Starts sending the frames to the specified publisher (while it has subscribers)
+     */
+    void addPublisher(TouchFramePublisher publisher)
+    {
+        if (publishers.add(publisher)) updateSubscription();
+    }
+    
+    void removePublisher(TouchFramePublisher publisher)
+    {
+        if (publishers.remove(publisher)) updateSubscription();
+    }
+    
+    /**
+     * Listens to the touch source only while this provider is enabled and has at least one
+     * listener, so that the source (and the native driver behind it) can stay idle otherwise
+     */
+    private synchronized void updateSubscription()
+    {
+        if (source == null) return;
+        
+        boolean wanted = enabled && !shutDown && !(listeners.isEmpty() && motionListeners.isEmpty() && twoFingersListeners.isEmpty() && multiFingersListeners.isEmpty() && publishers.isEmpty());
+        
+        if (wanted == subscribed) return;
+        
+        subscribed = wanted;
+        
+        if (wanted) engine.subscribe(this);
+        else engine.unsubscribe(this);
+    }
+    
+    /**
+     * Notifies each motion and two-finger listener in its own lane, on a small shared thread pool.
+     * A slow listener then neither delays the other listeners nor the touch driver: while it is
+     * busy, its pending motion and gesture events are merged, so that it receives the latest
+     * motion in fewer steps. Listeners running for longer than the time budget are reported.
+     * Finger state listeners are always notified inline.
+     * 
+     * @param timeBudget
+     *            the time (in milliseconds) after which a listener is reported as too slow
+     */
+    public void setIsolatedDispatch(long timeBudget)
+    {
+        if (timeBudget <= 0) throw new IllegalArgumentException("The listener time budget should be positive");
+        
+        listenerTimeBudget = timeBudget * 1000000L;
+        
+        synchronized (this)
+        {
+            isolated = true;
+            updateLanes();
+        }
+    }
+    
+    /**
+     * Notifies all listeners directly on the thread dispatching the frames (this is the default
+     * mode)
+     */
+    public synchronized void setInlineDispatch()
+    {
+        isolated = false;
+        updateLanes();
+    }
+    
+    /**
+     * @return <code>true</code> if motion and two-finger listeners are notified in their own lane
+     *         (see {@link #setIsolatedDispatch(long)})
+     */
+    public boolean isIsolatedDispatch()
+    {
+        return isolated;
+    }
+    
+    /**
+     * Creates a lane for each new motion and two-finger listener, and discards the lanes of the
+     * removed ones
+     */
+    private synchronized void updateLanes()
+    {
+        if (!isolated)
+        {
+            motionLanes.clear();
+            twoFingersLanes.clear();
+            return;
+        }
+        
+        for (ListenerLane lane : motionLanes.getListeners())
+            if (!contains(motionListeners.getListeners(), lane.getListener())) motionLanes.remove(lane);
+        
+        for (FingerMotionListener l : motionListeners.getListeners())
+            if (!hasLane(motionLanes, l)) motionLanes.add(new ListenerLane(this, l));
+        
+        for (ListenerLane lane : twoFingersLanes.getListeners())
+            if (!contains(twoFingersListeners.getListeners(), lane.getListener())) twoFingersLanes.remove(lane);
+        
+        for (TwoFingersListener l : twoFingersListeners.getListeners())
+            if (!hasLane(twoFingersLanes, l)) twoFingersLanes.add(new ListenerLane(this, l));
+    }
+    
+    private static boolean contains(Object[] listeners, Object listener)
+    {
+        for (Object l : listeners)
+            if (l == listener) return true;
+        return false;
+    }
+    
+    private static boolean hasLane(ListenerRegistry<ListenerLane> lanes, Object listener)
+    {
+        for (ListenerLane lane : lanes.getListeners())
+            if (lane.getListener() == listener) return true;
+        return false;
+    }
+    
+    /**
+     * @return the time budget (in nanoseconds) of an isolated listener
+     */
+    long getListenerTimeBudget()
+    {
+        return listenerTimeBudget;
+    }
+    
+    /**
+     * Called by the lanes when their listener exceeds the time budget
+     * 
+     * @param listener
+     * @param first
+     *            <code>true</code> if this listener was never reported before
+     */
+    void listenerOverrun(Object listener, boolean first)
+    {
+        metrics.listenerOverrun(first);
+        if (first) new AnnounceFrame("Warning: multi-touch listener " + listener + " exceeds its time budget (" + listenerTimeBudget / 1000000L + " ms), its events are being merged", ANNOUNCE_TIME);
+    }
+    
+    /**
+     * Called by the lanes after each delivery
+     */
+    void laneCompleted(ListenerLane lane, boolean motion, long nanos)
+    {
+        metrics.recordListenerTime(motion ? MOTION_LISTENERS : TWO_FINGERS_LISTENERS, nanos);
     }
     
     /**
-     * Returns the current number of fingers in the specified state
+     * Sets the parameters of the adaptive filter smoothing the finger positions seen by this
+     * provider (One-Euro filter). Every frame is used, but slow finger motion is smoothed more
+     * heavily (which removes jitter) than fast motion (which remains responsive). The other
+     * providers of the touchpad are not affected
+     * 
+     * @param minCutoff
+     *            the minimum cut-off frequency (in Hz), applied to a resting finger. The lower,
+     *            the smoother (default: 1 Hz)
+     * @param beta
+     *            the increase of the cut-off frequency with the finger speed. The higher, the
+     *            more responsive to fast motion (default: 10)
+     * @param derivateCutoff
+     *            the cut-off frequency (in Hz) used to smooth the finger speed (default: 1 Hz)
+     */
+    public void setSmoothing(double minCutoff, double beta, double derivateCutoff)
+    {
+        if (minCutoff == FingerFilter.DEFAULT_MIN_CUTOFF && beta == FingerFilter.DEFAULT_BETA && derivateCutoff == FingerFilter.DEFAULT_DERIVATE_CUTOFF)
+        {
+            // back to the filter shared with the other providers
+            filter = null;
+            return;
+        }
+        
+        FingerFilter own = new FingerFilter(MAX_FINGER_BLOBS);
+        own.setParameters(minCutoff, beta, derivateCutoff);
+        filter = own;
+    }
+    
+    /**
+     * Extrapolates the finger positions (and hence the motion and gesture events of this
+     * provider) by a fixed amount of time, to compensate the latency between a touch and its
+     * display. Prediction is disabled by default
+     * 
+     * @param seconds
+     *            the prediction horizon (0 to disable prediction). Values beyond
+     *            {@link #MAX_PREDICTION_HORIZON} are clamped
+     */
+    public void setPredictionHorizon(double seconds)
+    {
+        predictor.setFixedHorizon(seconds);
+    }
+    
+    /**
+     * Extrapolates the finger positions seen by this provider by the presentation latency
+     * measured by the consumer (see {@link #reportPresentationLatency(double)})
+     */
+    public void setMeasuredPredictionHorizon()
+    {
+        predictor.setMeasuredHorizon();
+    }
+    
+    /**
+     * @return the current prediction horizon (in seconds)
+     */
+    public double getPredictionHorizon()
+    {
+        return predictor.getHorizon();
+    }
+    
+    /**
+     * Reports the time elapsed between the notification of an event and its display. The reports
+     * are averaged and used as prediction horizon if {@link #setMeasuredPredictionHorizon()} was
+     * called
+     * 
+     * @param seconds
+     */
+    public void reportPresentationLatency(double seconds)
+    {
+        predictor.reportLatency(seconds);
+    }
+    
+    /**
+     * Prepares the smoothing and prediction of this provider for a new frame (called by the
+     * engine before dispatching the frame)
+     * 
+     * @param sharedFilter
+     *            the default filter of the engine
+     * @return <code>true</code> if this provider smoothes or extrapolates the frame differently
+     *         from the other providers
+     */
+    boolean beginTracking(FingerFilter sharedFilter)
+    {
+        FingerFilter own = filter;
+        frameFilter = own;
+        
+        boolean predicting = predictor.beginFrame(own != null ? own : sharedFilter);
+        ownTracking = own != null || predicting;
+        return ownTracking;
+    }
+    
+    /**
+     * @return the own filter of this provider for the current frame, or <code>null</code> if it
+     *         uses the default filter
+     */
+    FingerFilter getFrameFilter()
+    {
+        return frameFilter;
+    }
+    
+    /**
+     * @return <code>true</code> if the motion and gestures of the current frame should be
+     *         computed from the positions of {@link #getPredictor()}
+     */
+    boolean hasOwnTracking()
+    {
+        return ownTracking;
+    }
+    
+    /**
+     * @return the prediction of the finger positions seen by this provider
+     */
+    MotionPredictor getPredictor()
+    {
+        return predictor;
+    }
+    
+    /**
+     * @return the metrics of this provider (also published via JMX as
+     *         "plugins.adufour.multitouch:type=MultiTouchProvider")
+     */
+    public TouchMetrics getMetrics()
+    {
+        return metrics;
+    }
+    
+    /**
+     * @return the recent frames of the pressed fingers, shared by all listeners (the slot of a
+     *         finger is given by {@link #getSlot(int, Finger)})
+     */
+    public FingerHistory getHistory()
+    {
+        return engine.getHistory();
+    }
+    
+    /**
+     * Returns the slot where the data of the specified finger is stored (e.g. in the
+     * {@link #getHistory() history}). Slots are assigned when a finger appears, and reused once it
+     * is released, hence this method should only be called from a listener, while the finger is
+     * being notified
+     * 
+     * @param device
+     *            the device of the finger (see {@link TouchFrame#getDevice()})
+     * @param finger
+     * @return the slot of the finger, or -1 if it is not tracked
+     */
+    public int getSlot(int device, Finger finger)
+    {
+        return engine.getSlot(device, finger);
+    }
+    
+    /**
+     * Returns the current number of fingers in the specified state. This method can be called from
+     * any thread: the number of pressed fingers is updated as soon as a finger is pressed or
+     * released, while the other counts reflect the last frame completely processed (see
+     * {@link #getSnapshot(TouchSnapshot)})
      * 
      * @param state
      *            a finger state (see constants in the {@link FingerState} class)
@@ -142,156 +639,254 @@ public class MultiTouchProvider extends Plugin implements PluginLibrary, Observe
      */
     public int getCount(FingerState state)
     {
-        int cpt = 0;
-        for (Finger f : currentFingersState)
+        return engine.getCount(state);
+    }
+    
+    /**
+     * @return a new snapshot of the tracked fingers and of the current gesture (see
+     *         {@link #getSnapshot(TouchSnapshot)})
+     */
+    public TouchSnapshot getSnapshot()
+    {
+        return getSnapshot(new TouchSnapshot());
+    }
+    
+    /**
+     * Takes a consistent snapshot of the tracked fingers (states and positions) and of the current
+     * gesture, as of the last frame completely processed. This method can be called from any
+     * thread (e.g. the EDT), never blocks the thread dispatching the frames, and does not allocate
+     * anything, so that a reader polling the touchpad can reuse the same snapshot
+     * 
+     * @param snapshot
+     *            the snapshot to overwrite
+     * @return the specified snapshot
+     */
+    public TouchSnapshot getSnapshot(TouchSnapshot snapshot)
+    {
+        return engine.getSnapshot(snapshot);
+    }
+    
+    // notifications from the engine (on the thread dispatching the frames)
+    
+    boolean hasMotionListeners()
+    {
+        return !motionListeners.isEmpty();
+    }
+    
+    boolean hasTwoFingersListeners()
+    {
+        return !twoFingersListeners.isEmpty();
+    }
+    
+    boolean hasMultiFingersListeners()
+    {
+        return !multiFingersListeners.isEmpty();
+    }
+    
+    void frameStarted(TouchFrame frame)
+    {
+        metrics.eventsReceived(frame.getFingerCount());
+        timed = metrics.frameStarted();
+    }
+    
+    void frameCompleted(TouchFrame frame, int filtered)
+    {
+        for (TouchFramePublisher publisher : publishers.getListeners())
+            publisher.frameReceived(frame);
+        
+        if (filtered > 0) metrics.eventsFiltered(filtered);
+        if (timed) metrics.frameCompleted(frame.getTimestamp());
+    }
+    
+    /**
+     * Notifies the state listeners that a finger was pressed, released or is hovering
+     */
+    void fingerStateChanged(Finger finger)
+    {
+        if (listeners.isEmpty() || (interest.getEvents() & TouchInterest.STATE_CHANGES) == 0) return;
+        
+        long start = timed ? System.nanoTime() : 0L;
+        
+        if (finger.getState() == FingerState.PRESSED)
         {
-            if (f == null) continue;
-            if (f.getState() == state) cpt++;
+            for (FingerStateListener l : listeners.getListeners())
+                l.fingerPressed(this, finger);
         }
-        return cpt;
+        else if (finger.getState() == FingerState.RELEASED)
+        {
+            for (FingerStateListener l : listeners.getListeners())
+                l.fingerReleased(this, finger);
+        }
+        else if (finger.getState() == FingerState.HOVER)
+        {
+            for (FingerStateListener l : listeners.getListeners())
+                l.fingerHover(this, finger);
+        }
+        
+        if (timed) metrics.recordListenerTime(STATE_LISTENERS, System.nanoTime() - start);
     }
     
-    public void update(Observable obj, Object arg)
+    /**
+     * Notifies the motion listeners
+     * 
+     * @param slot
+     *            the slot of the finger
+     * @param finger
+     * @param dX
+     *            the (filtered) motion along X
+     * @param dY
+     *            the (filtered) motion along Y
+     */
+    void fingerMoved(int slot, Finger finger, float dX, float dY)
     {
-        if (!enabled) return;
+        if (motionListeners.isEmpty()) return;
         
-        Finger newFingerState = (Finger) arg;
-        
-        // the finger ID starts at 1, not 0
-        final int id = newFingerState.getID() - 1;
+        if (isolated)
+        {
+            for (ListenerLane lane : motionLanes.getListeners())
+                if (lane.postMotion(slot, finger, dX, dY)) metrics.eventsCoalesced(1);
+            return;
+        }
         
-        Finger oldFingerState = currentFingersState[id];
+        long start = timed ? System.nanoTime() : 0L;
+        for (FingerMotionListener l : motionListeners.getListeners())
+            l.fingerMoved(this, finger, dX, dY);
+        if (timed) metrics.recordListenerTime(MOTION_LISTENERS, System.nanoTime() - start);
+    }
+    
+    /**
+     * Notifies the two-finger listeners
+     * 
+     * @param gestures
+     *            the gestures detected by the {@link TwoFingersKernel}
+     * @param gesture
+     *            the gesture parameters computed by the {@link TwoFingersKernel}
+     */
+    void twoFingersGesture(int gestures, float[] gesture)
+    {
+        if (twoFingersListeners.isEmpty()) return;
         
-        if (oldFingerState == null || oldFingersState[id] == null)
+        if (isolated)
         {
-            currentFingersState[id] = newFingerState;
-            oldFingersState[id] = newFingerState;
+            postTwoFingersEvent(gestures, gesture);
             return;
         }
         
-        if (newFingerState.getState() == FingerState.PRESSED)
+        long start = timed ? System.nanoTime() : 0L;
+        
+        if ((gestures & TwoFingersKernel.DRAG) != 0)
         {
-            // count the number of frames the finger was pressed
-            nbFramesPressed[id]++;
-            
-            // consider the event "valid" only after a number of time frames
-            // => this prevents artifact gestures
-            if (nbFramesPressed[id] > PRESSED_FRAMES_THRESHOLD)
-            {
-                // the event is valid => reset the counter
-                nbFramesPressed[id] = 0;
-                
-                processMultiTouchEvent(oldFingerState, newFingerState);
-            }
+            for (TwoFingersListener l : twoFingersListeners.getListeners())
+                drag(l, gesture[TwoFingersKernel.DRAG_X], gesture[TwoFingersKernel.DRAG_Y], gesture[TwoFingersKernel.DRAG_DELTA], dragDirection);
         }
-        else if (newFingerState.getState() == FingerState.RELEASED)
+        
+        if ((gestures & TwoFingersKernel.PINCH) != 0)
         {
-            nbFramesPressed[id] = 0;
-            
-            // state listeners
-            if (newFingerState.getState() != oldFingerState.getState()) for (FingerStateListener l : listeners)
-                l.fingerReleased(this, newFingerState);
-            
+            for (TwoFingersListener l : twoFingersListeners.getListeners())
+                l.pinch(this, gesture[TwoFingersKernel.PINCH_DELTA]);
         }
-        else if (newFingerState.getState() == FingerState.HOVER)
+        
+        if ((gestures & TwoFingersKernel.ROTATE) != 0)
         {
-            // state listeners
-            if (newFingerState.getState() != oldFingerState.getState()) for (FingerStateListener l : listeners)
-                l.fingerHover(this, newFingerState);
+            for (TwoFingersListener l : twoFingersListeners.getListeners())
+                l.rotate(this, gesture[TwoFingersKernel.ROTATE_ANGLE]);
         }
         
-        oldFingersState[id] = currentFingersState[id];
-        currentFingersState[id] = newFingerState;
+        if (timed) metrics.recordListenerTime(TWO_FINGERS_LISTENERS, System.nanoTime() - start);
+    }
+    
+    /**
+     * Notifies a two-finger listener of a drag, through the primitive overload if it implements
+     * {@link PrimitiveTwoFingersListener}, and through the specified (reused) vector otherwise
+     */
+    void drag(TwoFingersListener listener, float directionX, float directionY, float delta, Vector2f direction)
+    {
+        if (listener instanceof PrimitiveTwoFingersListener)
+        {
+            ((PrimitiveTwoFingersListener) listener).drag(this, directionX, directionY, delta);
+        }
+        else
+        {
+            direction.set(directionX, directionY);
+            listener.drag(this, direction, delta);
+        }
     }
     
-    private void processMultiTouchEvent(Finger oldFingerState, Finger newFingerState)
+    /**
+     * Notifies the listeners of the gestures of three fingers or more
+     * 
+     * @param fingers
+     *            the number of pressed fingers
+     * @param gestures
+     *            the gestures detected by the {@link MultiFingersKernel}
+     * @param gesture
+     *            the statistics computed by the {@link MultiFingersKernel}
+     */
+    void multiFingersGesture(int fingers, int gestures, float[] gesture)
     {
-        // state listeners
-        if (newFingerState.getState() != oldFingerState.getState()) for (FingerStateListener l : listeners)
-            l.fingerPressed(this, newFingerState);
+        if (multiFingersListeners.isEmpty()) return;
         
-        Point2f f1 = new Point2f(newFingerState.getX(), newFingerState.getY());
-        Point2f f1old = new Point2f(oldFingerState.getX(), oldFingerState.getY());
-        Vector3f df1 = new Vector3f(f1.x - f1old.x, f1.y - f1old.y, 0);
+        long start = timed ? System.nanoTime() : 0L;
         
-        // motion listeners
-        if (motionListeners.size() > 0)
+        if ((gestures & MultiFingersKernel.SWIPE) != 0)
         {
-            if (Math.abs(df1.x) > MOTION_THRESHOLD || Math.abs(df1.y) > MOTION_THRESHOLD) for (FingerMotionListener motionListener : motionListeners)
-                motionListener.fingerMoved(this, newFingerState, df1.x, df1.y);
+            for (MultiFingersListener l : multiFingersListeners.getListeners())
+                l.swipe(this, fingers, gesture[MultiFingersKernel.TRANSLATION_X], gesture[MultiFingersKernel.TRANSLATION_Y]);
         }
         
-        // multi-touch gestures
-        if (twoFingersListeners.size() > 0)
+        if ((gestures & MultiFingersKernel.PINCH) != 0)
         {
-            int nbFingers = getCount(FingerState.PRESSED);
-            
-            if (nbFingers == 2)
-            {
-                Finger curF2 = null;
-                // find the second finger
-                for (int i = 0; i < MAX_FINGER_BLOBS; i++)
-                {
-                    curF2 = currentFingersState[i];
-                    if (curF2 != null && curF2.getState() == FingerState.PRESSED && curF2.getID() != newFingerState.getID()) break;
-                }
-                
-                int id2 = curF2.getID() - 1;
-                
-                Point2f f2 = new Point2f(curF2.getX(), curF2.getY());
-                Point2f f2old = new Point2f(oldFingersState[id2].getX(), oldFingersState[id2].getY());
-                Vector3f df2 = new Vector3f(f2.x - f2old.x, f2.y - f2old.y, 0);
-                
-                float dotv1v2 = df1.dot(df2);
-                
-                if (dotv1v2 > DRAG_THRESHOLD)
-                {
-                    // drag
-                    
-                    float delta = df1.length();
-                    df1.normalize(); // WARNING: df1 is destroyed from now on
-                    
-                    for (TwoFingersListener l : twoFingersListeners)
-                        l.drag(this, new Vector2f(df1.x, df1.y), delta);
-                }
-                else
-                {
-                    // pinch
-                    
-                    Vector3f f1f2 = new Vector3f(f2.x - f1.x, f2.y - f1.y, 0);
-                    Vector3f f1f2Old = new Vector3f(f2old.x - f1old.x, f2old.y - f1old.y, 0);
-                    
-                    float dDistance = f1f2Old.length() - f1f2.length();
-                    
-                    if (Math.abs(dDistance) > PINCH_THRESHOLD)
-                    {
-                        //System.out.println("pinch by " + dDistance);
-                        for (TwoFingersListener l : twoFingersListeners)
-                            l.pinch(this, dDistance);
-                        
-                        if (Math.abs(dDistance) > PINCH_OVER_ROTATION_THRESHOLD) return;
-                    }
-                    
-                    // rotate
-                    
-                    float angle = f1f2Old.angle(f1f2);
-                    f1f2.cross(f1f2Old, f1f2); // WARNING: f1f2 is destroyed from now on
-                    
-                    if (Math.abs(f1f2.z) > ROTATE_THRESHOLD)
-                    {
-                        //System.out.println("rotate by " + Math.abs(f1f2.z));
-                        for (TwoFingersListener l : twoFingersListeners)
-                            l.rotate(this, Math.signum(f1f2.z) * angle);
-                    }
-                }
-            }
+            for (MultiFingersListener l : multiFingersListeners.getListeners())
+                l.pinch(this, fingers, gesture[MultiFingersKernel.SPREAD_DELTA]);
+        }
+        
+        if ((gestures & MultiFingersKernel.ROTATE) != 0)
+        {
+            for (MultiFingersListener l : multiFingersListeners.getListeners())
+                l.rotate(this, fingers, gesture[MultiFingersKernel.ROTATION]);
         }
         
+        if (timed) metrics.recordListenerTime(MULTI_FINGERS_LISTENERS, System.nanoTime() - start);
+    }
+    
+    /**
+     * Posts the gestures computed by the {@link TwoFingersKernel} to the lanes of the two-finger
+     * listeners
+     */
+    private void postTwoFingersEvent(int gestures, float[] gesture)
+    {
+        for (ListenerLane lane : twoFingersLanes.getListeners())
+        {
+            int merged = 0;
+            
+            if ((gestures & TwoFingersKernel.DRAG) != 0 && lane.postDrag(gesture[TwoFingersKernel.DRAG_X], gesture[TwoFingersKernel.DRAG_Y], gesture[TwoFingersKernel.DRAG_DELTA])) merged++;
+            if ((gestures & TwoFingersKernel.PINCH) != 0 && lane.postPinch(gesture[TwoFingersKernel.PINCH_DELTA])) merged++;
+            if ((gestures & TwoFingersKernel.ROTATE) != 0 && lane.postRotate(gesture[TwoFingersKernel.ROTATE_ANGLE])) merged++;
+            
+            if (merged > 0) metrics.eventsCoalesced(merged);
+        }
     }
     
     public void shutDown()
     {
-        tpo.deleteObservers();
+        synchronized (this)
+        {
+            if (shutDown) return;
+            shutDown = true;
+        }
+        for (TouchFramePublisher publisher : publishers.getListeners())
+            publisher.close();
+        
+        TouchFramePublisher defaultPublisher;
+        synchronized (this)
+        {
+            defaultPublisher = framePublisher;
+        }
+        if (defaultPublisher != null) defaultPublisher.close();
+        
+        updateSubscription();
+        engine.release();
+        metrics.unregister();
     }
     
     @Override
@@ -0,0 +1,27 @@
+package plugins.adufour.multitouch;
+
+import javax.vecmath.Vector2f;
+
+/**
+ * Two-finger listener receiving the drag direction as primitive values. The provider checks
+ * whether its two-finger listeners implement this interface: if so, it calls
+ * {@link #drag(MultiTouchProvider, float, float, float)} instead of
+ * {@link #drag(MultiTouchProvider, Vector2f, float)}, which is then never called.
+ * 
+ * @author adufour
+ */
+public interface PrimitiveTwoFingersListener extends TwoFingersListener
+{
+	/**
+	 * Called when the two fingers are dragged in a parallel direction.
+	 * 
+	 * @param source
+	 * @param directionX
+	 *            the X component of the (normalized) drag direction
+	 * @param directionY
+	 *            the Y component of the (normalized) drag direction
+	 * @param delta
+	 *            the drag length
+	 */
+	void drag(MultiTouchProvider source, float directionX, float directionY, float delta);
+}
@@ -0,0 +1,191 @@
+package plugins.adufour.multitouch;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.alderstone.multitouch.mac.touchpad.Finger;
+import com.alderstone.multitouch.mac.touchpad.FingerState;
+
+/**
+ * Publication of the {@link TouchSnapshot}s of a {@link GestureEngine}, following the sequence
+ * lock pattern: the (single) writer makes the sequence number odd, updates the data, then makes
+ * it even again, while readers copy the data and start over if the sequence number was odd or has
+ * changed meanwhile. The writer therefore never waits for the readers, and readers never see a
+ * half-written snapshot. All cells are atomic variables, so that the pattern is correct under the
+ * Java memory model (plain fields could be read out of order).
+ * 
+ * @author adufour
+ */
+class SnapshotBuffer
+{
+    /** Finger states, by code (the native state IDs) */
+    private static final FingerState[] STATES          = { FingerState.UNKNOWN, FingerState.UNKNOWN_1, FingerState.HOVER, FingerState.TAP, FingerState.PRESSED, FingerState.PRESSING, FingerState.RELEASING, FingerState.RELEASED };
+    
+    // header cells
+    
+    private static final int           FRAME           = 0;
+    
+    private static final int           FINGER_COUNT    = 1;
+    
+    private static final int           GESTURES        = 2;
+    
+    private static final int           GESTURE_FINGERS = 3;
+    
+    private static final int           HEADER_SIZE     = 4;
+    
+    // finger cells (relative to the first cell of the finger)
+    
+    private static final int           DEVICE          = 0;
+    
+    private static final int           ID              = 1;
+    
+    private static final int           STATE           = 2;
+    
+    private static final int           X               = 3;
+    
+    private static final int           Y               = 4;
+    
+    private static final int           FINGER_SIZE     = 5;
+    
+    /** Odd while the writer updates the data */
+    private volatile long              sequence        = 0;
+    
+    private final AtomicIntegerArray   cells;
+    
+    private final AtomicLong           timestamp       = new AtomicLong();
+    
+    /** Number of fingers written since {@link #beginWrite(int, double)} (only used by the writer) */
+    private int                        written         = 0;
+    
+    /**
+     * @param capacity
+     *            the maximum number of fingers in a snapshot
+     */
+    SnapshotBuffer(int capacity)
+    {
+        cells = new AtomicIntegerArray(HEADER_SIZE + capacity * FINGER_SIZE);
+    }
+    
+    private static int codeOf(FingerState state)
+    {
+        for (int code = 1; code < STATES.length; code++)
+            if (STATES[code] == state) return code;
+        return 0;
+    }
+    
+    /**
+     * Starts writing a new snapshot (only called by the writer)
+     */
+    void beginWrite(int frame, double time)
+    {
+        sequence++;
+        
+        cells.set(FRAME, frame);
+        timestamp.set(Double.doubleToRawLongBits(time));
+        written = 0;
+    }
+    
+    /**
+     * Adds a finger to the snapshot being written (only called by the writer)
+     */
+    void writeFinger(int device, Finger finger)
+    {
+        int offset = HEADER_SIZE + written * FINGER_SIZE;
+        
+        cells.set(offset + DEVICE, device);
+        cells.set(offset + ID, finger.getID());
+        cells.set(offset + STATE, codeOf(finger.getState()));
+        cells.set(offset + X, Float.floatToRawIntBits(finger.getX()));
+        cells.set(offset + Y, Float.floatToRawIntBits(finger.getY()));
+        
+        written++;
+    }
+    
+    /**
+     * Completes the snapshot being written, which becomes visible to the readers (only called by
+     * the writer)
+     */
+    void endWrite(int gestures, int gestureFingers)
+    {
+        cells.set(FINGER_COUNT, written);
+        cells.set(GESTURES, gestures);
+        cells.set(GESTURE_FINGERS, gestureFingers);
+        
+        sequence++;
+    }
+    
+    /**
+     * Counts the fingers of the last complete snapshot in the specified state (from any thread,
+     * without allocating)
+     */
+    int getCount(FingerState state)
+    {
+        final int code = codeOf(state);
+        
+        for (;;)
+        {
+            long before = sequence;
+            
+            if ((before & 1) != 0)
+            {
+                Thread.yield();
+                continue;
+            }
+            
+            int count = Math.min(cells.get(FINGER_COUNT), (cells.length() - HEADER_SIZE) / FINGER_SIZE);
+            
+            int cpt = 0;
+            for (int i = 0; i < count; i++)
+                if (cells.get(HEADER_SIZE + i * FINGER_SIZE + STATE) == code) cpt++;
+            
+            if (sequence == before) return cpt;
+        }
+    }
+    
+    /**
+     * Copies the last complete snapshot into the specified one (from any thread)
+     * 
+     * @param snapshot
+     * @return the specified snapshot
+     */
+    TouchSnapshot readInto(TouchSnapshot snapshot)
+    {
+        for (;;)
+        {
+            long before = sequence;
+            
+            // the writer is busy: wait for it to finish
+            if ((before & 1) != 0)
+            {
+                Thread.yield();
+                continue;
+            }
+            
+            snapshot.frame = cells.get(FRAME);
+            snapshot.timestamp = Double.longBitsToDouble(timestamp.get());
+            snapshot.gestures = cells.get(GESTURES);
+            snapshot.gestureFingers = cells.get(GESTURE_FINGERS);
+            
+            // the count may be inconsistent (and out of bounds) until validated below
+            int count = Math.min(cells.get(FINGER_COUNT), snapshot.ids.length);
+            
+            for (int i = 0; i < count; i++)
+            {
+                int offset = HEADER_SIZE + i * FINGER_SIZE;
+                
+                snapshot.devices[i] = cells.get(offset + DEVICE);
+                snapshot.ids[i] = cells.get(offset + ID);
+                snapshot.states[i] = STATES[cells.get(offset + STATE)];
+                snapshot.x[i] = Float.intBitsToFloat(cells.get(offset + X));
+                snapshot.y[i] = Float.intBitsToFloat(cells.get(offset + Y));
+            }
+            
+            if (sequence == before)
+            {
+                snapshot.fingerCount = count;
+                snapshot.version = before >>> 1;
+                return snapshot;
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package plugins.adufour.multitouch;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import com.alderstone.multitouch.mac.touchpad.ListenerRegistry;
+import com.alderstone.multitouch.mac.touchpad.TouchFrame;
+
+/**
+ * Demand-driven view of the frames received by a {@link MultiTouchProvider} (see
+ * {@link MultiTouchProvider#getFramePublisher()}). Each subscriber receives detached copies of the
+ * frames at its own pace: frames are only delivered as requested (see
+ * {@link Flow.Subscription#request(long)}), on an executor, so that a slow subscriber never blocks
+ * the touch source nor the other listeners.<br/>
+ * <br/>
+ * Frames exceeding the outstanding demand of a subscriber are kept in a bounded buffer. With
+ * {@link Conflation#MOTION} (the default), such a frame is merged into the last buffered one if it
+ * only carries motion, so that the subscriber eventually receives the latest finger positions in
+ * fewer, larger steps, while state changes (pressed, released...) are never merged. Frames that
+ * do not fit in the buffer are dropped (see {@link #getDroppedCount()}).
+ * 
+ * @author adufour
+ */
+public class TouchFramePublisher implements Flow.Publisher<TouchFrame>
+{
+    /**
+     * Buffering of the frames exceeding the demand of a subscriber
+     */
+    public enum Conflation
+    {
+        /**
+         * Keep every frame (up to the buffer size)
+         */
+        NONE,
+        
+        /**
+         * Merge the frames that only carry finger motion into the last buffered frame (if it has
+         * the same fingers)
+         */
+        MOTION
+    }
+    
+    /**
+     * Maximum number of frames delivered in a row to a subscriber, before letting the other tasks
+     * of the executor run
+     */
+    private static final int                          BATCH_SIZE    = 16;
+    
+    private final MultiTouchProvider                  provider;
+    
+    private final Conflation                          conflation;
+    
+    private final int                                 bufferSize;
+    
+    private final Executor                            executor;
+    
+    private final ListenerRegistry<FrameSubscription> subscriptions = new ListenerRegistry<FrameSubscription>(FrameSubscription.class);
+    
+    /** Whether this publisher was closed (guarded by this) */
+    private boolean                                   closed        = false;
+    
+    /** Number of frames dropped because a buffer was full (only written by the source thread) */
+    private volatile long                             dropped       = 0;
+    
+    /** Number of frames merged into a buffered one (only written by the source thread) */
+    private volatile long                             conflated     = 0;
+    
+    /**
+     * Creates a publisher conflating the motion frames in a buffer of
+     * {@link Flow#defaultBufferSize()} frames per subscriber, and delivering them on the threads
+     * of the isolated listeners (see {@link MultiTouchProvider#setIsolatedDispatch(long)})
+     * 
+     * @param provider
+     */
+    public TouchFramePublisher(MultiTouchProvider provider)
+    {
+        this(provider, Conflation.MOTION, Flow.defaultBufferSize(), ListenerLane.getSharedExecutor());
+    }
+    
+    /**
+     * @param provider
+     *            the provider whose frames are published
+     * @param conflation
+     *            how to buffer the frames exceeding the demand of a subscriber
+     * @param bufferSize
+     *            the maximum number of frames buffered per subscriber
+     * @param executor
+     *            the executor delivering the frames to the subscribers
+     */
+    public TouchFramePublisher(MultiTouchProvider provider, Conflation conflation, int bufferSize, Executor executor)
+    {
+        if (bufferSize < 1) throw new IllegalArgumentException("The buffer should hold at least one frame");
+        
+        this.provider = provider;
+        this.conflation = conflation;
+        this.bufferSize = bufferSize;
+        this.executor = executor;
+    }
+    
+    @Override
+    public void subscribe(Flow.Subscriber<? super TouchFrame> subscriber)
+    {
+        if (subscriber == null) throw new NullPointerException("Cannot subscribe a null subscriber");
+        
+        FrameSubscription subscription = new FrameSubscription(subscriber);
+        
+        subscriber.onSubscribe(subscription);
+        
+        synchronized (this)
+        {
+            if (closed || provider.isShutDown())
+            {
+                subscription.complete();
+                return;
+            }
+            
+            for (FrameSubscription s : subscriptions.getListeners())
+                if (s.subscriber == subscriber)
+                {
+                    subscription.fail(new IllegalStateException("Already subscribed: " + subscriber));
+                    return;
+                }
+            
+            subscriptions.add(subscription);
+            provider.addPublisher(this);
+        }
+    }
+    
+    /**
+     * Completes all subscriptions (once their buffered frames have been delivered). Subscribers
+     * arriving later are completed immediately
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (closed) return;
+            closed = true;
+            
+            provider.removePublisher(this);
+        }
+        
+        for (FrameSubscription s : subscriptions.getListeners())
+            s.complete();
+        
+        subscriptions.clear();
+    }
+    
+    /**
+     * @return <code>true</code> if this publisher was closed
+     */
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+    
+    /**
+     * @return the number of current subscribers
+     */
+    public int getSubscriberCount()
+    {
+        return subscriptions.size();
+    }
+    
+    /**
+     * @return the number of frames dropped because the buffer of a subscriber was full
+     */
+    public long getDroppedCount()
+    {
+        return dropped;
+    }
+    
+    /**
+     * @return the number of frames merged into a buffered frame (see {@link Conflation#MOTION})
+     */
+    public long getConflatedCount()
+    {
+        return conflated;
+    }
+    
+    /**
+     * Forgets the specified subscription
+     */
+    private synchronized void remove(FrameSubscription subscription)
+    {
+        if (subscriptions.remove(subscription) && subscriptions.isEmpty()) provider.removePublisher(this);
+    }
+    
+    /**
+     * Publishes a new frame (on the thread dispatching the frames of the provider)
+     */
+    void frameReceived(TouchFrame frame)
+    {
+        for (FrameSubscription s : subscriptions.getListeners())
+            s.offer(frame);
+    }
+    
+    /**
+     * Buffer and delivery state of a single subscriber
+     */
+    private class FrameSubscription implements Flow.Subscription, Runnable
+    {
+        private final Flow.Subscriber<? super TouchFrame> subscriber;
+        
+        // state guarded by this
+        
+        /** Detached copies of the frames awaiting demand */
+        private final ArrayDeque<TouchFrame>              pending    = new ArrayDeque<TouchFrame>();
+        
+        /** Outstanding demand (saturated at {@link Long#MAX_VALUE}, i.e. unbounded) */
+        private long                                      demand     = 0;
+        
+        /** Whether this subscription is queued or running on the executor */
+        private boolean                                   scheduled  = false;
+        
+        private boolean                                   cancelled  = false;
+        
+        /** Whether the subscription should complete once the pending frames are delivered */
+        private boolean                                   completing = false;
+        
+        /** Error to deliver, or null */
+        private Throwable                                 error      = null;
+        
+        /** Whether onComplete or onError was delivered */
+        private boolean                                   terminated = false;
+        
+        FrameSubscription(Flow.Subscriber<? super TouchFrame> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+        
+        void offer(TouchFrame frame)
+        {
+            synchronized (this)
+            {
+                if (cancelled || completing || terminated) return;
+                
+                // frames beyond the demand cannot be delivered yet: merge them if possible
+                if (conflation == Conflation.MOTION && pending.size() >= demand && !pending.isEmpty() && pending.peekLast().conflate(frame))
+                {
+                    conflated++;
+                }
+                else if (pending.size() == bufferSize)
+                {
+                    dropped++;
+                    return;
+                }
+                else
+                {
+                    pending.add(frame.copy());
+                    if (demand > 0) schedule();
+                    return;
+                }
+            }
+            
+            provider.getMetrics().eventsCoalesced(1);
+        }
+        
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                fail(new IllegalArgumentException("The demand should be positive (rule 3.9): " + n));
+                return;
+            }
+            
+            synchronized (this)
+            {
+                demand += n;
+                if (demand < 0) demand = Long.MAX_VALUE;
+                
+                if (!pending.isEmpty()) schedule();
+            }
+        }
+        
+        @Override
+        public void cancel()
+        {
+            synchronized (this)
+            {
+                cancelled = true;
+                pending.clear();
+            }
+            remove(this);
+        }
+        
+        /**
+         * Completes this subscription once the pending frames are delivered
+         */
+        synchronized void complete()
+        {
+            completing = true;
+            schedule();
+        }
+        
+        /**
+         * Terminates this subscription with the specified error (pending frames are discarded)
+         */
+        void fail(Throwable throwable)
+        {
+            synchronized (this)
+            {
+                if (error == null) error = throwable;
+                pending.clear();
+                schedule();
+            }
+            remove(this);
+        }
+        
+        /**
+         * Runs this subscription on the executor (if not already the case). Must be called while
+         * holding the lock
+         */
+        private void schedule()
+        {
+            if (scheduled || terminated) return;
+            
+            scheduled = true;
+            executor.execute(this);
+        }
+        
+        @Override
+        public void run()
+        {
+            for (int i = 0; i < BATCH_SIZE; i++)
+            {
+                TouchFrame frame = null;
+                Throwable failure = null;
+                
+                synchronized (this)
+                {
+                    if (cancelled || terminated)
+                    {
+                        scheduled = false;
+                        return;
+                    }
+                    
+                    if (error != null)
+                    {
+                        failure = error;
+                        terminated = true;
+                    }
+                    else if (demand > 0 && !pending.isEmpty())
+                    {
+                        frame = pending.poll();
+                        if (demand != Long.MAX_VALUE) demand--;
+                    }
+                    else if (completing && pending.isEmpty())
+                    {
+                        terminated = true;
+                    }
+                    else
+                    {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                
+                // signals are sent without holding the lock
+                
+                if (failure != null)
+                {
+                    subscriber.onError(failure);
+                    return;
+                }
+                
+                if (frame == null)
+                {
+                    subscriber.onComplete();
+                    return;
+                }
+                
+                try
+                {
+                    subscriber.onNext(frame);
+                }
+                catch (Throwable t)
+                {
+                    // a failing subscriber is cancelled (rule 2.13)
+                    synchronized (this)
+                    {
+                        terminated = true;
+                        pending.clear();
+                    }
+                    remove(this);
+                    subscriber.onError(t);
+                    return;
+                }
+            }
+            
+            // let the other tasks of the executor run
+            executor.execute(this);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package plugins.adufour.multitouch;
+
+import com.alderstone.multitouch.mac.touchpad.FingerState;
+
+/**
+ * Consistent view of the fingers tracked by a {@link MultiTouchProvider} and of the current
+ * gesture, as of the last frame completely processed (see
+ * {@link MultiTouchProvider#getSnapshot(TouchSnapshot)}). Snapshots can be taken from any thread
+ * without blocking the thread dispatching the frames, and are never modified afterwards, unless
+ * reused to take another snapshot. A snapshot is not thread-safe by itself: each reading thread
+ * should use its own.
+ * 
+ * @author adufour
+ */
+public class TouchSnapshot
+{
+    int                 frame;
+    
+    double              timestamp;
+    
+    int                 fingerCount;
+    
+    final int[]         devices = new int[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    final int[]         ids     = new int[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    final FingerState[] states  = new FingerState[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    final float[]       x       = new float[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    final float[]       y       = new float[MultiTouchProvider.MAX_FINGER_BLOBS];
+    
+    /** Flags of the current gesture (see {@link #getGestures()}) */
+    int                 gestures;
+    
+    int                 gestureFingers;
+    
+    /**
+     * Version of the snapshot (incremented for each processed frame)
+     */
+    long                version;
+    
+    /**
+     * @return the native number of the last processed frame
+     */
+    public int getFrame()
+    {
+        return frame;
+    }
+    
+    /**
+     * @return the timestamp of the last processed frame
+     */
+    public double getTimestamp()
+    {
+        return timestamp;
+    }
+    
+    /**
+     * @return the number of processed frames when this snapshot was taken (two snapshots with the
+     *         same version hold the same data)
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+    
+    /**
+     * @return the number of tracked fingers (released fingers are forgotten)
+     */
+    public int getFingerCount()
+    {
+        return fingerCount;
+    }
+    
+    /**
+     * @param index
+     *            the index of a finger (between 0 and {@link #getFingerCount()} - 1)
+     * @return the device of the specified finger
+     */
+    public int getDevice(int index)
+    {
+        return devices[index];
+    }
+    
+    /**
+     * @param index
+     *            the index of a finger (between 0 and {@link #getFingerCount()} - 1)
+     * @return the native ID of the specified finger
+     */
+    public int getID(int index)
+    {
+        return ids[index];
+    }
+    
+    /**
+     * @param index
+     *            the index of a finger (between 0 and {@link #getFingerCount()} - 1)
+     * @return the state of the specified finger
+     */
+    public FingerState getState(int index)
+    {
+        return states[index];
+    }
+    
+    /**
+     * @param index
+     *            the index of a finger (between 0 and {@link #getFingerCount()} - 1)
+     * @return the (raw) position of the specified finger along X
+     */
+    public float getX(int index)
+    {
+        return x[index];
+    }
+    
+    /**
+     * @param index
+     *            the index of a finger (between 0 and {@link #getFingerCount()} - 1)
+     * @return the (raw) position of the specified finger along Y
+     */
+    public float getY(int index)
+    {
+        return y[index];
+    }
+    
+    /**
+     * @param state
+     *            a finger state (see constants in the {@link FingerState} class)
+     * @return the number of fingers in the specified state
+     */
+    public int getCount(FingerState state)
+    {
+        int cpt = 0;
+        for (int i = 0; i < fingerCount; i++)
+            if (states[i] == state) cpt++;
+        return cpt;
+    }
+    
+    /**
+     * Returns the current gesture, i.e. the last gesture detected since the number of pressed
+     * fingers last changed. The flags are those of the {@link TwoFingersKernel} if
+     * {@link #getGestureFingers()} is 2, and those of the {@link MultiFingersKernel} otherwise
+     * 
+     * @return the flags of the current gesture, or 0 if there is none
+     */
+    public int getGestures()
+    {
+        return gestures;
+    }
+    
+    /**
+     * @return the number of fingers involved in the current gesture, or 0 if there is none (see
+     *         {@link #getGestures()})
+     */
+    public int getGestureFingers()
+    {
+        return gestureFingers;
+    }
+    
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("TouchSnapshot[frame=").append(frame);
+        sb.append(", fingers=").append(fingerCount);
+        sb.append(", gestures=").append(gestures).append('/').append(gestureFingers).append(']');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,120 @@
+package plugins.adufour.multitouch;
+
+/**
+ * Stateless classification of two-finger gestures (drag, pinch, rotate) from the previous and
+ * current positions of both fingers. All computations are done on primitive values, and the
+ * results are written into a caller-provided array, so that the classification does not allocate
+ * anything.
+ * 
+ * @author adufour
+ */
+public final class TwoFingersKernel
+{
+    /** Flag set by {@link #classify} when the fingers are dragged in a parallel direction */
+    public static final int DRAG         = 1;
+    
+    /** Flag set by {@link #classify} when the distance between the fingers varies */
+    public static final int PINCH        = 2;
+    
+    /** Flag set by {@link #classify} when the axis between the fingers rotates */
+    public static final int ROTATE       = 4;
+    
+    /** Index of the normalized drag direction (X component) in the result array */
+    public static final int DRAG_X       = 0;
+    
+    /** Index of the normalized drag direction (Y component) in the result array */
+    public static final int DRAG_Y       = 1;
+    
+    /** Index of the drag length in the result array */
+    public static final int DRAG_DELTA   = 2;
+    
+    /** Index of the pinch delta in the result array */
+    public static final int PINCH_DELTA  = 3;
+    
+    /** Index of the rotation angle (in radians) in the result array */
+    public static final int ROTATE_ANGLE = 4;
+    
+    /** Minimum size of the result array */
+    public static final int RESULT_SIZE  = 5;
+    
+    private TwoFingersKernel()
+    {
+    }
+    
+    /**
+     * Classifies the motion of two fingers between two consecutive frames. A drag excludes the
+     * other gestures, while a pinch and a rotation may be detected simultaneously, unless the
+     * pinch is too large (see {@link MultiTouchProvider#PINCH_OVER_ROTATION_THRESHOLD}).
+     * 
+     * @param x1
+     *            current position of the first finger
+     * @param y1
+     *            current position of the first finger
+     * @param x1old
+     *            previous position of the first finger
+     * @param y1old
+     *            previous position of the first finger
+     * @param x2
+     *            current position of the second finger
+     * @param y2
+     *            current position of the second finger
+     * @param x2old
+     *            previous position of the second finger
+     * @param y2old
+     *            previous position of the second finger
+     * @param result
+     *            an array of at least {@link #RESULT_SIZE} elements, where the gesture parameters
+     *            are stored (see the index constants of this class). Only the values of the
+     *            detected gestures are written
+     * @return a combination of the {@link #DRAG}, {@link #PINCH} and {@link #ROTATE} flags (or 0
+     *         if no gesture is detected)
+     */
+    public static int classify(float x1, float y1, float x1old, float y1old, float x2, float y2, float x2old, float y2old, float[] result)
+    {
+        // finger displacements
+        final float dx1 = x1 - x1old, dy1 = y1 - y1old;
+        final float dx2 = x2 - x2old, dy2 = y2 - y2old;
+        
+        if (dx1 * dx2 + dy1 * dy2 > MultiTouchProvider.DRAG_THRESHOLD)
+        {
+            // drag
+            
+            float delta = (float) Math.sqrt(dx1 * dx1 + dy1 * dy1);
+            
+            result[DRAG_X] = dx1 / delta;
+            result[DRAG_Y] = dy1 / delta;
+            result[DRAG_DELTA] = delta;
+            return DRAG;
+        }
+        
+        int gestures = 0;
+        
+        // pinch
+        
+        final float ax = x2old - x1old, ay = y2old - y1old; // old axis
+        final float bx = x2 - x1, by = y2 - y1; // new axis
+        
+        float dDistance = (float) (Math.sqrt(ax * ax + ay * ay) - Math.sqrt(bx * bx + by * by));
+        
+        if (Math.abs(dDistance) > MultiTouchProvider.PINCH_THRESHOLD)
+        {
+            result[PINCH_DELTA] = dDistance;
+            gestures |= PINCH;
+            
+            if (Math.abs(dDistance) > MultiTouchProvider.PINCH_OVER_ROTATION_THRESHOLD) return gestures;
+        }
+        
+        // rotate
+        
+        final float cross = ax * by - ay * bx;
+        
+        if (Math.abs(cross) > MultiTouchProvider.ROTATE_THRESHOLD)
+        {
+            // signed angle between the old and new axes
+            result[ROTATE_ANGLE] = (float) Math.atan2(cross, ax * bx + ay * by);
+            gestures |= ROTATE;
+        }
+        
+        return gestures;
+    }
+}
@@ -0,0 +1,147 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+/**
+ * jcstress tests of the {@link ListenerRegistry}, i.e. of listeners added or removed (e.g. on the
+ * EDT) while the events are being dispatched
+ * 
+ * @author adufour
+ */
+public class ListenerRegistryStress
+{
+	/**
+	 * Dispatches a frame to the listeners of the specified registry
+	 * 
+	 * @return the number of listeners notified, or -1 if the snapshot holds a null listener
+	 */
+	static int dispatch(ListenerRegistry<TouchFrameListener> registry)
+	{
+		int notified = 0;
+		for (TouchFrameListener l : registry.getListeners())
+		{
+			if (l == null) return -1;
+			notified++;
+		}
+		return notified;
+	}
+	
+	static TouchFrameListener newListener()
+	{
+		return new TouchFrameListener()
+		{
+			public void frameReceived(TouchFrame frame)
+			{
+			}
+		};
+	}
+	
+	@JCStressTest
+	@Description("Listeners added concurrently are all registered")
+	@Outcome(id = "2", expect = ACCEPTABLE, desc = "Both listeners are registered")
+	@Outcome(id = "1", expect = FORBIDDEN, desc = "An addition was lost")
+	@State
+	public static class ConcurrentAdds
+	{
+		final ListenerRegistry<TouchFrameListener>	registry	= new ListenerRegistry<TouchFrameListener>(TouchFrameListener.class);
+		
+		@Actor
+		public void add1()
+		{
+			registry.add(newListener());
+		}
+		
+		@Actor
+		public void add2()
+		{
+			registry.add(newListener());
+		}
+		
+		@Arbiter
+		public void arbiter(I_Result r)
+		{
+			r.r1 = registry.size();
+		}
+	}
+	
+	@JCStressTest
+	@Description("A listener added during a dispatch is notified from the next dispatch on")
+	@Outcome(id = "1, 2", expect = ACCEPTABLE, desc = "Dispatched before the addition")
+	@Outcome(id = "2, 2", expect = ACCEPTABLE, desc = "Dispatched after the addition")
+	@Outcome(expect = FORBIDDEN, desc = "Inconsistent snapshot")
+	@State
+	public static class AddDuringDispatch
+	{
+		final ListenerRegistry<TouchFrameListener>	registry	= new ListenerRegistry<TouchFrameListener>(TouchFrameListener.class);
+		
+		public AddDuringDispatch()
+		{
+			registry.add(newListener());
+		}
+		
+		@Actor
+		public void edt()
+		{
+			registry.add(newListener());
+		}
+		
+		@Actor
+		public void dispatcher(II_Result r)
+		{
+			r.r1 = dispatch(registry);
+		}
+		
+		@Arbiter
+		public void arbiter(II_Result r)
+		{
+			r.r2 = dispatch(registry);
+		}
+	}
+	
+	@JCStressTest
+	@Description("A listener removed during a dispatch is not notified anymore from the next dispatch on")
+	@Outcome(id = "2, 1", expect = ACCEPTABLE, desc = "Dispatched before the removal")
+	@Outcome(id = "1, 1", expect = ACCEPTABLE, desc = "Dispatched after the removal")
+	@Outcome(expect = FORBIDDEN, desc = "Inconsistent snapshot")
+	@State
+	public static class RemoveDuringDispatch
+	{
+		final ListenerRegistry<TouchFrameListener>	registry	= new ListenerRegistry<TouchFrameListener>(TouchFrameListener.class);
+		
+		final TouchFrameListener					removed		= newListener();
+		
+		public RemoveDuringDispatch()
+		{
+			registry.add(newListener());
+			registry.add(removed);
+		}
+		
+		@Actor
+		public void edt()
+		{
+			registry.remove(removed);
+		}
+		
+		@Actor
+		public void dispatcher(II_Result r)
+		{
+			r.r1 = dispatch(registry);
+		}
+		
+		@Arbiter
+		public void arbiter(II_Result r)
+		{
+			r.r2 = dispatch(registry);
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.vecmath.Vector2f;
+
+import plugins.adufour.multitouch.FingerMotionListener;
+import plugins.adufour.multitouch.FingerStateAdapter;
+import plugins.adufour.multitouch.MultiTouchProvider;
+import plugins.adufour.multitouch.PrimitiveTwoFingersListener;
+import plugins.adufour.multitouch.TouchSnapshot;
+
+/**
+ * Synthetic touch storm: several producer threads drive {@link TouchpadObservable#update} as fast
+ * as possible (each with its own pair of fingers, and taking turns, since the native callback
+ * thread is the only caller of update() in production), while other threads concurrently:
+ * <ul>
+ * <li>add and remove listeners (as the EDT does, e.g. from the "De-activate" action of the
+ * canvas)</li>
+ * <li>create and shut down providers sharing the touchpad (as the finalizer does)</li>
+ * <li>read the finger states (see {@link MultiTouchProvider#getSnapshot(TouchSnapshot)})</li>
+ * </ul>
+ * The storm fails (exit code 1) if any thread throws, if an inconsistent state is read, or if the
+ * throughput falls below the target rate.<br/>
+ * Usage: <code>TouchStorm [producers (4)] [seconds (10)] [minimum events per second (10000)]</code>
+ * 
+ * @author adufour
+ */
+public class TouchStorm
+{
+	// native state identifiers (see FingerState#getStateFor(int))
+	
+	private static final int			PRESSED			= 4;
+	
+	private static final int			RELEASED		= 7;
+	
+	/** Touchpad frame rate (in Hz), used for the timestamps */
+	private static final double			FRAME_RATE		= 90;
+	
+	/** Number of frames of a touch sequence of each producer */
+	private static final int			SEQUENCE		= 200;
+	
+	private final TouchpadObservable	touchpad		= TouchpadObservable.createDetached();
+	
+	private final MultiTouchProvider	provider;
+	
+	private final int					nbProducers;
+	
+	/** Serializes the calls to update(), as the native callback thread does */
+	private final Object				nativeThread	= new Object();
+	
+	/** Frame number shared by the producers */
+	private int							frame			= 0;
+	
+	private volatile boolean			running			= true;
+	
+	private final AtomicLong			events			= new AtomicLong();
+	
+	private final AtomicLong			notifications	= new AtomicLong();
+	
+	private final AtomicLong			reads			= new AtomicLong();
+	
+	private final AtomicLong			churns			= new AtomicLong();
+	
+	private final AtomicInteger			errors			= new AtomicInteger();
+	
+	TouchStorm(int nbProducers)
+	{
+		this.nbProducers = nbProducers;
+		
+		provider = new MultiTouchProvider(touchpad);
+		
+		// permanent listeners, so that the pipeline never goes idle
+		provider.addFingerMotionListener(new FingerMotionListener()
+		{
+			public void fingerMoved(MultiTouchProvider source, Finger finger, float dX, float dY)
+			{
+				notifications.incrementAndGet();
+			}
+		});
+		provider.addTwoFingersListener(new PrimitiveTwoFingersListener()
+		{
+			public void rotate(MultiTouchProvider source, float angle)
+			{
+				notifications.incrementAndGet();
+			}
+			
+			public void pinch(MultiTouchProvider source, float delta)
+			{
+				notifications.incrementAndGet();
+			}
+			
+			public void drag(MultiTouchProvider source, Vector2f direction, float delta)
+			{
+			}
+			
+			public void drag(MultiTouchProvider source, float directionX, float directionY, float delta)
+			{
+				notifications.incrementAndGet();
+			}
+		});
+	}
+	
+	/**
+	 * Sends the touch sequences of a pair of fingers (on a producer thread)
+	 */
+	void produce(int producer)
+	{
+		final int id1 = 2 * producer + 1, id2 = id1 + 1;
+		final float cx = (producer + 0.5f) / nbProducers;
+		
+		for (int step = 0; running; step = (step + 1) % SEQUENCE)
+		{
+			int state = step == SEQUENCE - 1 ? RELEASED : PRESSED;
+			float spread = 0.02f + 0.01f * (float) Math.sin(step * 0.1);
+			float angle = step * 0.02f;
+			float dx = spread * (float) Math.cos(angle), dy = spread * (float) Math.sin(angle);
+			
+			synchronized (nativeThread)
+			{
+				frame++;
+				double timestamp = frame / FRAME_RATE;
+				
+				touchpad.update(frame, timestamp, id1, state, 1f, cx - dx, 0.5f - dy, 0f, 0f, angle, 10f, 8f);
+				touchpad.update(frame, timestamp, id2, state, 1f, cx + dx, 0.5f + dy, 0f, 0f, angle, 10f, 8f);
+			}
+			
+			events.addAndGet(2);
+		}
+	}
+	
+	/**
+	 * Adds and removes listeners, and creates and shuts down providers (on the EDT-like thread)
+	 */
+	void churn()
+	{
+		FingerStateAdapter listener = new FingerStateAdapter();
+		TouchFrameListener frameListener = new TouchFrameListener()
+		{
+			public void frameReceived(TouchFrame f)
+			{
+				if (f.getFingerCount() == 0) errors.incrementAndGet();
+			}
+		};
+		
+		while (running)
+		{
+			provider.addFingerListener(listener);
+			touchpad.addFrameListener(frameListener, TouchInterest.STATE_CHANGES_ONLY);
+			
+			MultiTouchProvider transient_ = new MultiTouchProvider(touchpad);
+			transient_.addFingerListener(listener);
+			
+			Thread.yield();
+			
+			provider.removeFingerListener(listener);
+			touchpad.removeFrameListener(frameListener);
+			
+			// every other provider is left to the finalizer
+			if (churns.incrementAndGet() % 2 == 0) transient_.shutDown();
+			else if (churns.get() % 64 == 1) System.gc();
+		}
+	}
+	
+	/**
+	 * Reads the finger states and checks their consistency (on an analysis thread)
+	 */
+	void read()
+	{
+		TouchSnapshot snapshot = new TouchSnapshot();
+		
+		while (running)
+		{
+			provider.getSnapshot(snapshot);
+			
+			// each producer owns 2 fingers
+			if (snapshot.getFingerCount() > 2 * nbProducers) errors.incrementAndGet();
+			
+			for (int i = 0; i < snapshot.getFingerCount(); i++)
+				if (snapshot.getState(i) == null || snapshot.getID(i) < 1 || snapshot.getID(i) > 2 * nbProducers) errors.incrementAndGet();
+			
+			int pressed = provider.getCount(FingerState.PRESSED);
+			if (pressed < 0 || pressed > 2 * nbProducers) errors.incrementAndGet();
+			
+			reads.incrementAndGet();
+		}
+	}
+	
+	private Thread start(String name, final Runnable task)
+	{
+		Thread thread = new Thread(name)
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					task.run();
+				}
+				catch (Throwable t)
+				{
+					t.printStackTrace();
+					errors.incrementAndGet();
+					running = false;
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+	
+	/**
+	 * Runs the storm for the specified duration
+	 * 
+	 * @return the number of events per second
+	 */
+	double run(long millis) throws InterruptedException
+	{
+		// failures of the dispatcher and listener threads
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+		{
+			public void uncaughtException(Thread t, Throwable e)
+			{
+				e.printStackTrace();
+				errors.incrementAndGet();
+			}
+		});
+		
+		Thread[] threads = new Thread[nbProducers + 2];
+		
+		for (int i = 0; i < nbProducers; i++)
+		{
+			final int producer = i;
+			threads[i] = start("Storm producer " + i, new Runnable()
+			{
+				public void run()
+				{
+					produce(producer);
+				}
+			});
+		}
+		threads[nbProducers] = start("Storm churn", new Runnable()
+		{
+			public void run()
+			{
+				churn();
+			}
+		});
+		threads[nbProducers + 1] = start("Storm reader", new Runnable()
+		{
+			public void run()
+			{
+				read();
+			}
+		});
+		
+		long start = System.nanoTime();
+		Thread.sleep(millis);
+		running = false;
+		
+		for (Thread thread : threads)
+			thread.join();
+		
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		provider.shutDown();
+		
+		return events.get() / seconds;
+	}
+	
+	public static void main(String[] args) throws InterruptedException
+	{
+		int nbProducers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 10;
+		double target = args.length > 2 ? Double.parseDouble(args[2]) : 10000;
+		
+		TouchStorm storm = new TouchStorm(nbProducers);
+		double rate = storm.run((long) (seconds * 1000));
+		
+		TouchMetrics metrics = storm.touchpad.getMetrics();
+		
+		System.out.printf("%d producers: %.0f events/s, %d frames, %d dropped, %d coalesced, %d notifications, %d state reads, %d listener churns, %d errors%n", nbProducers, rate, metrics.getFrameCount(), metrics.getDroppedEventCount(), metrics.getCoalescedEventCount(),
+				storm.notifications.get(), storm.reads.get(), storm.churns.get(), storm.errors.get());
+		
+		if (storm.errors.get() > 0 || rate < target)
+		{
+			System.out.printf("FAILED (minimum rate: %.0f events/s)%n", target);
+			System.exit(1);
+		}
+	}
+}
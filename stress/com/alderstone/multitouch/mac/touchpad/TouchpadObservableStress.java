@@ -0,0 +1,134 @@
+package com.alderstone.multitouch.mac.touchpad;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * jcstress tests of the frame listeners of a {@link TouchpadObservable} registered while the
+ * native callback thread delivers events (through {@link TouchpadObservable#update}, with a
+ * synchronous dispatch, so that the frames are dispatched by the calling actor)
+ * 
+ * @author adufour
+ */
+public class TouchpadObservableStress
+{
+	/** Native state identifier of a pressed finger */
+	static final int	PRESSED	= 4;
+	
+	/**
+	 * Frame listener counting the frames it receives (only written by the dispatching thread)
+	 */
+	static class CountingListener implements TouchFrameListener
+	{
+		int	frames	= 0;
+		
+		public void frameReceived(TouchFrame frame)
+		{
+			frames++;
+		}
+	}
+	
+	static TouchpadObservable newTouchpad()
+	{
+		// not attached to the native driver
+		TouchpadObservable touchpad = TouchpadObservable.createDetached();
+		touchpad.setSynchronousDispatch();
+		return touchpad;
+	}
+	
+	/**
+	 * Delivers the events of two frames (the first one is complete once the second one starts)
+	 */
+	static void deliver(TouchpadObservable touchpad)
+	{
+		touchpad.update(1, 0.01, 1, PRESSED, 1f, 0.5f, 0.5f, 0f, 0f, 0f, 10f, 8f);
+		touchpad.update(2, 0.02, 1, PRESSED, 1f, 0.6f, 0.5f, 0f, 0f, 0f, 10f, 8f);
+	}
+	
+	@JCStressTest
+	@Description("A frame listener added while a frame is dispatched receives it entirely or not at all")
+	@Outcome(id = "1, 0", expect = ACCEPTABLE, desc = "Added after the dispatch")
+	@Outcome(id = "1, 1", expect = ACCEPTABLE, desc = "Added before the dispatch")
+	@Outcome(expect = FORBIDDEN, desc = "Frame lost or duplicated")
+	@State
+	public static class AddDuringUpdate
+	{
+		final TouchpadObservable	touchpad	= newTouchpad();
+		
+		final CountingListener		registered	= new CountingListener();
+		
+		final CountingListener		added		= new CountingListener();
+		
+		public AddDuringUpdate()
+		{
+			touchpad.addFrameListener(registered);
+		}
+		
+		@Actor
+		public void nativeThread()
+		{
+			deliver(touchpad);
+		}
+		
+		@Actor
+		public void edt()
+		{
+			touchpad.addFrameListener(added);
+		}
+		
+		@Arbiter
+		public void arbiter(II_Result r)
+		{
+			r.r1 = registered.frames;
+			r.r2 = added.frames;
+		}
+	}
+	
+	@JCStressTest
+	@Description("A frame listener removed while a frame is dispatched receives it entirely or not at all")
+	@Outcome(id = "1, 0", expect = ACCEPTABLE, desc = "Removed before the dispatch")
+	@Outcome(id = "1, 1", expect = ACCEPTABLE, desc = "Removed after the dispatch")
+	@Outcome(expect = FORBIDDEN, desc = "Frame lost or duplicated")
+	@State
+	public static class RemoveDuringUpdate
+	{
+		final TouchpadObservable	touchpad	= newTouchpad();
+		
+		final CountingListener		registered	= new CountingListener();
+		
+		final CountingListener		removed		= new CountingListener();
+		
+		public RemoveDuringUpdate()
+		{
+			touchpad.addFrameListener(registered);
+			touchpad.addFrameListener(removed);
+		}
+		
+		@Actor
+		public void nativeThread()
+		{
+			deliver(touchpad);
+		}
+		
+		@Actor
+		public void edt()
+		{
+			touchpad.removeFrameListener(removed);
+		}
+		
+		@Arbiter
+		public void arbiter(II_Result r)
+		{
+			r.r1 = registered.frames;
+			r.r2 = removed.frames;
+		}
+	}
+}
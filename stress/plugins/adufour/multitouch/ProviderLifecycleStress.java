@@ -0,0 +1,123 @@
+package plugins.adufour.multitouch;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+import com.alderstone.multitouch.mac.touchpad.ListenerRegistry;
+import com.alderstone.multitouch.mac.touchpad.TouchFrameListener;
+import com.alderstone.multitouch.mac.touchpad.TouchInterest;
+import com.alderstone.multitouch.mac.touchpad.TouchSource;
+
+/**
+ * jcstress tests of the subscription of the {@link MultiTouchProvider}s to their touch source,
+ * while listeners are added or removed (e.g. on the EDT) and providers are shut down (e.g. by the
+ * finalizer thread)
+ * 
+ * @author adufour
+ */
+public class ProviderLifecycleStress
+{
+    /**
+     * Touch source only keeping track of its listeners
+     */
+    static class CountingSource implements TouchSource
+    {
+        final ListenerRegistry<TouchFrameListener> listeners = new ListenerRegistry<TouchFrameListener>(TouchFrameListener.class);
+        
+        public void addFrameListener(TouchFrameListener listener)
+        {
+            listeners.add(listener);
+        }
+        
+        public void addFrameListener(TouchFrameListener listener, TouchInterest interest)
+        {
+            listeners.add(listener);
+        }
+        
+        public void removeFrameListener(TouchFrameListener listener)
+        {
+            listeners.remove(listener);
+        }
+    }
+    
+    @JCStressTest
+    @Description("A provider shut down while a listener is added stops listening to its source")
+    @Outcome(id = "0", expect = ACCEPTABLE, desc = "The source is not listened to")
+    @Outcome(expect = FORBIDDEN, desc = "The shut down provider still listens to the source")
+    @State
+    public static class AddDuringShutDown
+    {
+        final CountingSource     source   = new CountingSource();
+        
+        final MultiTouchProvider provider = new MultiTouchProvider(source);
+        
+        @Actor
+        public void edt()
+        {
+            provider.addFingerListener(new FingerStateAdapter());
+        }
+        
+        @Actor
+        public void finalizer()
+        {
+            provider.shutDown();
+        }
+        
+        @Arbiter
+        public void arbiter(I_Result r)
+        {
+            r.r1 = source.listeners.size();
+        }
+    }
+    
+    @JCStressTest
+    @Description("Two providers sharing a source subscribe and unsubscribe concurrently: the source is listened to once")
+    @Outcome(id = "1", expect = ACCEPTABLE, desc = "The engine listens to the source once")
+    @Outcome(expect = FORBIDDEN, desc = "The source is not listened to, or several times")
+    @State
+    public static class SharedEngineSubscription
+    {
+        final CountingSource     source   = new CountingSource();
+        
+        final MultiTouchProvider leaving  = new MultiTouchProvider(source);
+        
+        final MultiTouchProvider arriving = new MultiTouchProvider(source);
+        
+        final FingerStateAdapter listener = new FingerStateAdapter();
+        
+        public SharedEngineSubscription()
+        {
+            leaving.addFingerListener(listener);
+        }
+        
+        @Actor
+        public void edt1()
+        {
+            leaving.removeFingerListener(listener);
+        }
+        
+        @Actor
+        public void edt2()
+        {
+            arriving.addFingerListener(new FingerStateAdapter());
+        }
+        
+        @Arbiter
+        public void arbiter(I_Result r)
+        {
+            r.r1 = source.listeners.size();
+            
+            // release the shared engine
+            leaving.shutDown();
+            arriving.shutDown();
+        }
+    }
+}
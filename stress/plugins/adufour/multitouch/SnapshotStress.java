@@ -0,0 +1,113 @@
+package plugins.adufour.multitouch;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+import com.alderstone.multitouch.mac.touchpad.Finger;
+import com.alderstone.multitouch.mac.touchpad.FingerState;
+
+/**
+ * jcstress tests of the state reads (see {@link MultiTouchProvider#getSnapshot(TouchSnapshot)})
+ * performed while the thread dispatching the frames publishes a new state
+ * 
+ * @author adufour
+ */
+public class SnapshotStress
+{
+    /** Native state identifier of a pressed finger */
+    static final int PRESSED = 4;
+    
+    /**
+     * Publishes a frame where all fingers hold the frame number as ID and position, so that a
+     * reader can tell a torn snapshot
+     */
+    static void publish(SnapshotBuffer buffer, int frame, int nbFingers)
+    {
+        buffer.beginWrite(frame, frame);
+        for (int i = 0; i < nbFingers; i++)
+            buffer.writeFinger(0, new Finger(frame, frame, frame, PRESSED, 1f, frame, frame, 0f, 0f, 0f, 10f, 8f));
+        buffer.endWrite(frame, nbFingers);
+    }
+    
+    /**
+     * @return <code>true</code> if all the fields of the snapshot come from the same frame
+     */
+    static boolean isConsistent(TouchSnapshot snapshot)
+    {
+        final int frame = snapshot.getFrame();
+        
+        // frame n has n + 1 fingers
+        if (snapshot.getFingerCount() != frame + 1) return false;
+        if (snapshot.getTimestamp() != frame || snapshot.getGestures() != frame || snapshot.getGestureFingers() != frame + 1) return false;
+        
+        for (int i = 0; i < snapshot.getFingerCount(); i++)
+            if (snapshot.getID(i) != frame || snapshot.getX(i) != frame || snapshot.getY(i) != frame) return false;
+        
+        return true;
+    }
+    
+    @JCStressTest
+    @Description("A snapshot taken while a frame is published holds either the previous or the new frame")
+    @Outcome(id = "1, 1", expect = ACCEPTABLE, desc = "Previous frame")
+    @Outcome(id = "2, 1", expect = ACCEPTABLE, desc = "New frame")
+    @Outcome(id = { "1, 0", "2, 0" }, expect = FORBIDDEN, desc = "Torn snapshot")
+    @State
+    public static class ReadDuringPublication
+    {
+        final SnapshotBuffer buffer = new SnapshotBuffer(MultiTouchProvider.MAX_FINGER_BLOBS);
+        
+        public ReadDuringPublication()
+        {
+            publish(buffer, 1, 2);
+        }
+        
+        @Actor
+        public void dispatcher()
+        {
+            publish(buffer, 2, 3);
+        }
+        
+        @Actor
+        public void reader(II_Result r)
+        {
+            TouchSnapshot snapshot = buffer.readInto(new TouchSnapshot());
+            r.r1 = snapshot.getFrame();
+            r.r2 = isConsistent(snapshot) ? 1 : 0;
+        }
+    }
+    
+    @JCStressTest
+    @Description("Counting the pressed fingers while a frame is published gives the count of either frame")
+    @Outcome(id = { "2", "3" }, expect = ACCEPTABLE, desc = "Count of the previous or new frame")
+    @Outcome(expect = FORBIDDEN, desc = "Torn count")
+    @State
+    public static class CountDuringPublication
+    {
+        final SnapshotBuffer buffer = new SnapshotBuffer(MultiTouchProvider.MAX_FINGER_BLOBS);
+        
+        public CountDuringPublication()
+        {
+            publish(buffer, 1, 2);
+        }
+        
+        @Actor
+        public void dispatcher()
+        {
+            publish(buffer, 2, 3);
+        }
+        
+        @Actor
+        public void reader(I_Result r)
+        {
+            r.r1 = buffer.getCount(FingerState.PRESSED);
+        }
+    }
+}